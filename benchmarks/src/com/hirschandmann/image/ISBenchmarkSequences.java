@@ -0,0 +1,161 @@
+package com.hirschandmann.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Synthetic image sequences for the benchmarks.
+ * Frames are generated rather than shipped (a gradient with a square moving across it, so consecutive frames differ by a few tiles),
+ * folders and pack files are written once to the temporary folder and reused by later runs.
+ */
+final class ISBenchmarkSequences {
+
+    // where generated folders and pack files are kept
+    private static final File root = new File(System.getProperty("java.io.tmpdir"), "isplayer-benchmarks");
+
+    private ISBenchmarkSequences(){}
+
+    /**
+     * returns a sketch which isn't running, enough for players to load images and register with
+     * @return
+     */
+    static PApplet sketch(){
+        PApplet sketch = new PApplet();
+        // lets loadImage() work outside of setup()
+        sketch.sketchPath();
+        return sketch;
+    }
+
+    /**
+     * returns the width of a resolution such as "1920x1080"
+     * @param resolution
+     * @return
+     */
+    static int width(String resolution){
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    /**
+     * returns the height of a resolution such as "1920x1080"
+     * @param resolution
+     * @return
+     */
+    static int height(String resolution){
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+
+    /**
+     * generate a frame
+     * @param width
+     * @param height
+     * @param index - frame index, moves the square
+     * @return an opaque ARGB image
+     */
+    static PImage frame(int width, int height, int index){
+        PImage frame = new PImage(width, height, PConstants.ARGB);
+        int size = Math.max(1, height / 4);
+        int left = (index * 8) % Math.max(1, width - size);
+        int top = (height - size) / 2;
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                boolean square = x >= left && x < left + size && y >= top && y < top + size;
+                frame.pixels[y * width + x] = square ? 0xFFFFFFFF : 0xFF000000 | (x * 255 / width) << 16 | (y * 255 / height) << 8;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * generate a sequence in memory
+     * @param width
+     * @param height
+     * @param numFrames
+     * @return
+     */
+    static PImage[] frames(int width, int height, int numFrames){
+        PImage[] frames = new PImage[numFrames];
+        for(int i = 0; i < numFrames; i++){
+            frames[i] = frame(width, height, i);
+        }
+        return frames;
+    }
+
+    /**
+     * copy a sequence in memory: new images with their own pixels, so players don't share frames
+     * (as they would with a copy of the array)
+     * @param frames
+     * @return
+     */
+    static PImage[] copy(PImage[] frames){
+        PImage[] copies = new PImage[frames.length];
+        for(int i = 0; i < frames.length; i++){
+            copies[i] = new PImage(frames[i].width, frames[i].height, frames[i].format);
+            System.arraycopy(frames[i].pixels, 0, copies[i].pixels, 0, frames[i].pixels.length);
+        }
+        return copies;
+    }
+
+    /**
+     * returns a folder of generated PNG frames, writing it unless a previous run did
+     * @param width
+     * @param height
+     * @param numFrames
+     * @return absolute path
+     */
+    static String folder(int width, int height, int numFrames){
+        return folder(width, height, numFrames, 0);
+    }
+
+    /**
+     * returns one of several folders of the same generated PNG frames, writing it unless a previous run did:
+     * players of different folders each decode their own sequence
+     * @param width
+     * @param height
+     * @param numFrames
+     * @param copy - 0 for the first folder
+     * @return absolute path
+     */
+    static String folder(int width, int height, int numFrames, int copy){
+        File dir = new File(root, width + "x" + height + "-" + numFrames + (copy > 0 ? "-" + copy : ""));
+        String[] existing = dir.list();
+        if(existing != null && existing.length == numFrames) return dir.getAbsolutePath();
+
+        dir.mkdirs();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for(int i = 0; i < numFrames; i++){
+            PImage frame = frame(width, height, i);
+            image.setRGB(0, 0, width, height, frame.pixels, 0, width);
+            try {
+                ImageIO.write(image, "png", new File(dir, String.format("frame-%05d.png", i)));
+            } catch (IOException e) {
+                throw new Error("couldn't write benchmark frame:\n" + dir.getAbsolutePath() + "\n" + e.getLocalizedMessage());
+            }
+        }
+        return dir.getAbsolutePath();
+    }
+
+    /**
+     * returns a pack file of generated frames, writing it unless a previous run did
+     * @param sketch
+     * @param width
+     * @param height
+     * @param numFrames
+     * @return absolute path
+     */
+    static String pack(PApplet sketch, int width, int height, int numFrames){
+        String folder = folder(width, height, numFrames);
+        File pack = new File(folder + "." + ISPack.EXTENSION);
+        if(!pack.exists()){
+            ISPack.pack(sketch, folder, pack.getAbsolutePath());
+        }
+        return pack.getAbsolutePath();
+    }
+
+}
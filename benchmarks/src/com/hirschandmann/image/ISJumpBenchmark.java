@@ -0,0 +1,120 @@
+package com.hirschandmann.image;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PImage;
+
+/**
+ * Cost of presenting frames: jump() followed by pre() (what a sketch calling jump() from draw() pays per frame)
+ * in order and at random, and of a playback tick of the scheduler thread.
+ * Run with -prof gc for the allocation per presented frame (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ISJumpBenchmark {
+
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    @Param({"30", "120"})
+    public int frames;
+
+    // how frames are stored: decoded ARGB, packed RGB (setCompactFrames) or tile deltas (setDeltaFrames)
+    @Param({"plain", "compact", "delta"})
+    public String storage;
+
+    // setCopyPixels
+    @Param({"false", "true"})
+    public boolean copy;
+
+    private ISPlayer player;
+    // random playhead positions, generated once so every run jumps to the same frames
+    private int[] randomFrames;
+    private int sequentialFrame;
+    private int randomFrame;
+    // simulated System.nanoTime() for ticks, a frame duration apart
+    private long now;
+
+    @Setup
+    public void setup(){
+        int width = ISBenchmarkSequences.width(resolution);
+        int height = ISBenchmarkSequences.height(resolution);
+        PImage[] images = ISBenchmarkSequences.frames(width, height, frames);
+        // the same encodings a player applies as frames decode
+        for(int i = 0; i < frames; i++){
+            if(storage.equals("compact")){
+                images[i] = ISCompactFrame.compact(images[i]);
+            }else if(storage.equals("delta") && i % 30 != 0){
+                images[i] = ISDeltaFrame.encode(images[i], images[i - i % 30]);
+            }
+        }
+
+        player = new ISPlayer(ISBenchmarkSequences.sketch());
+        player.init(images, "benchmark");
+        player.setCopyPixels(copy);
+        // ticks are driven by the benchmark rather than the scheduler thread
+        ISScheduler.unregister(player);
+
+        randomFrames = new int[1024];
+        Random random = new Random(42);
+        for(int i = 0; i < randomFrames.length; i++){
+            randomFrames[i] = random.nextInt(frames);
+        }
+
+        player.setFrameRate(60);
+        player.loop();
+        now = System.nanoTime();
+        player.update(now);
+    }
+
+    @TearDown
+    public void tearDown(){
+        player.dispose();
+    }
+
+    @Benchmark
+    public int[] sequentialJump(){
+        sequentialFrame = (sequentialFrame + 1) % frames;
+        player.jump(sequentialFrame);
+        player.pre();
+        return player.pixels;
+    }
+
+    @Benchmark
+    public int[] randomJump(){
+        randomFrame = (randomFrame + 1) & (randomFrames.length - 1);
+        player.jump(randomFrames[randomFrame]);
+        player.pre();
+        return player.pixels;
+    }
+
+    /**
+     * one scheduler update a frame duration after the previous one: advances the playhead by a frame
+     */
+    @Benchmark
+    public long tick(){
+        now += Math.round(1e9 / 60);
+        long next = player.update(now);
+        player.pre();
+        return next;
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.hirschandmann.image;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PApplet;
+
+/**
+ * Time from init(String) until the first frame can be shown and until the whole sequence has loaded,
+ * for a folder of PNGs and a pack file, with one or several players of the same sequence.
+ * Sequences are written to the temporary folder on the first run;
+ * the first measured iteration may include reading them from disk rather than the OS file cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ISLoadBenchmark {
+
+    @Param({"640x360", "1920x1080"})
+    public String resolution;
+
+    @Param({"30", "120"})
+    public int frames;
+
+    // folder of PNGs or ISPack file
+    @Param({"folder", "pack"})
+    public String source;
+
+    // players initialised with the same sequence at once
+    @Param({"1", "8"})
+    public int players;
+
+    private PApplet sketch;
+    private String path;
+    private ISPlayer[] instances;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        sketch = ISBenchmarkSequences.sketch();
+        int width = ISBenchmarkSequences.width(resolution);
+        int height = ISBenchmarkSequences.height(resolution);
+        path = source.equals("pack") ? ISBenchmarkSequences.pack(sketch, width, height, frames) : ISBenchmarkSequences.folder(width, height, frames);
+        instances = new ISPlayer[players];
+    }
+
+    /**
+     * release the frames so the next invocation loads the sequence again
+     */
+    @TearDown(Level.Invocation)
+    public void release(){
+        for(int i = 0; i < instances.length; i++){
+            if(instances[i] != null) instances[i].dispose();
+            instances[i] = null;
+        }
+    }
+
+    @Benchmark
+    public ISPlayer[] timeToFirstFrame(){
+        for(int i = 0; i < instances.length; i++){
+            instances[i] = new ISPlayer(sketch, path);
+        }
+        for(ISPlayer player : instances){
+            while(player.getFrame() == null) LockSupport.parkNanos(100000);
+        }
+        return instances;
+    }
+
+    @Benchmark
+    public ISPlayer[] timeToFullyLoaded(){
+        for(int i = 0; i < instances.length; i++){
+            instances[i] = new ISPlayer(sketch, path);
+        }
+        for(ISPlayer player : instances){
+            while(player.isLoading()) LockSupport.parkNanos(100000);
+        }
+        return instances;
+    }
+
+}
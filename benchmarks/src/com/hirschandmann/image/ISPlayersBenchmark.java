@@ -0,0 +1,77 @@
+package com.hirschandmann.image;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Cost of a draw() with many players, as in the AnimationTimelineControl example:
+ * every player jumps to its own offset in the sequence and presents the frame.
+ * Players either share one array of images (one sequence) or each get their own copy of the images (one sequence each).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ISPlayersBenchmark {
+
+    @Param({"1", "4", "16", "64"})
+    public int players;
+
+    // true: all players are initialised with the same array, false: each with its own copy of the images
+    @Param({"true", "false"})
+    public boolean shared;
+
+    private static final int FRAMES = 60;
+
+    private ISPlayer[] instances;
+    private int frame;
+
+    @Setup
+    public void setup(){
+        PApplet sketch = ISBenchmarkSequences.sketch();
+        PImage[] images = ISBenchmarkSequences.frames(640, 360, FRAMES);
+        instances = new ISPlayer[players];
+        for(int i = 0; i < players; i++){
+            instances[i] = new ISPlayer(sketch);
+            instances[i].init(shared ? images : ISBenchmarkSequences.copy(images), "benchmark-" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        for(ISPlayer player : instances){
+            player.dispose();
+        }
+    }
+
+    @Benchmark
+    public int draw(){
+        frame++;
+        int presented = 0;
+        for(int i = 0; i < instances.length; i++){
+            ISPlayer player = instances[i];
+            player.jump((frame + i * 2) % FRAMES);
+            player.pre();
+            presented += player.width;
+        }
+        return presented;
+    }
+
+}
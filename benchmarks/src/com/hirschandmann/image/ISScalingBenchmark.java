@@ -0,0 +1,161 @@
+package com.hirschandmann.image;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * How throughput scales with the number of players of different sequences, which share the decode threads and the scheduler thread:
+ * the time for all of them to load their own folder, and to all play the same number of frames in real time.
+ * Playing takes PLAYED / FRAME_RATE seconds for as long as the scheduler keeps up,
+ * more once presenting the frames of all players (copying or expanding them) takes longer than a frame.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ISScalingBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int FRAMES = 30;
+    // frames each player plays per invocation, and how fast
+    private static final int PLAYED = 120;
+    private static final float FRAME_RATE = 120;
+
+    /**
+     * players each loading a folder of their own (written to the temporary folder on the first run)
+     */
+    @State(Scope.Benchmark)
+    public static class Loading {
+
+        @Param({"1", "4", "16", "64"})
+        public int players;
+
+        private PApplet sketch;
+        private String[] paths;
+        private ISPlayer[] instances;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            sketch = ISBenchmarkSequences.sketch();
+            paths = new String[players];
+            for(int i = 0; i < players; i++){
+                paths[i] = ISBenchmarkSequences.folder(WIDTH, HEIGHT, FRAMES, i);
+            }
+            instances = new ISPlayer[players];
+        }
+
+        /**
+         * release the frames so the next invocation loads the sequences again
+         */
+        @TearDown(Level.Invocation)
+        public void release(){
+            for(int i = 0; i < instances.length; i++){
+                if(instances[i] != null) instances[i].dispose();
+                instances[i] = null;
+            }
+        }
+    }
+
+    /**
+     * loaded players each playing a copy of the images of their own, presented without copying, copied, or expanded from packed RGB
+     */
+    @State(Scope.Benchmark)
+    public static class Playing {
+
+        @Param({"1", "4", "16", "64"})
+        public int players;
+
+        // setCopyPixels(false), setCopyPixels(true), or compact frames expanded when presented
+        @Param({"direct", "copy", "compact"})
+        public String presentation;
+
+        private ISPlayer[] instances;
+        // frames advanced by each player before the invocation
+        private long[] advanced;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            PApplet sketch = ISBenchmarkSequences.sketch();
+            PImage[] images = ISBenchmarkSequences.frames(WIDTH, HEIGHT, FRAMES);
+            instances = new ISPlayer[players];
+            advanced = new long[players];
+            for(int i = 0; i < players; i++){
+                PImage[] copies = ISBenchmarkSequences.copy(images);
+                if(presentation.equals("compact")){
+                    for(int j = 0; j < copies.length; j++){
+                        copies[j] = ISCompactFrame.compact(copies[j]);
+                    }
+                }
+                instances[i] = new ISPlayer(sketch);
+                instances[i].init(copies, "benchmark-" + i);
+                instances[i].setCopyPixels(presentation.equals("copy"));
+                instances[i].setFrameRate(FRAME_RATE);
+                // every frame is presented, late ones push the clock back rather than being skipped
+                instances[i].setLatePolicy(ISPlayer.HOLD_FRAMES);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void start(){
+            for(int i = 0; i < instances.length; i++){
+                advanced[i] = instances[i].getStats().getFramesAdvanced();
+                instances[i].loop();
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void stop(){
+            for(ISPlayer player : instances){
+                player.stop();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            for(ISPlayer player : instances){
+                player.dispose();
+            }
+        }
+    }
+
+    @Benchmark
+    public ISPlayer[] loadAll(Loading state){
+        ISPlayer[] instances = state.instances;
+        for(int i = 0; i < instances.length; i++){
+            instances[i] = new ISPlayer(state.sketch, state.paths[i]);
+        }
+        for(ISPlayer player : instances){
+            while(player.isLoading()) LockSupport.parkNanos(100000);
+        }
+        return instances;
+    }
+
+    @Benchmark
+    public ISPlayer[] playAll(Playing state){
+        ISPlayer[] instances = state.instances;
+        for(int i = 0; i < instances.length; i++){
+            while(instances[i].getStats().getFramesAdvanced() - state.advanced[i] < PLAYED) LockSupport.parkNanos(1000000);
+        }
+        return instances;
+    }
+
+}
@@ -0,0 +1,409 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import processing.core.PImage;
+
+/**
+ * Frames read from the image files in a single zip or (uncompressed) tar archive,
+ * so a sequence ships and opens as one file instead of thousands.
+ * The archive's index (the zip central directory, or the tar headers) is read once,
+ * then each frame's entry is read from a memory mapping of the archive: stored (uncompressed) entries in place,
+ * deflated zip entries through an inflater. Frames are ordered like the files of a folder, by path:
+ * character by character, or numbers by value with ISPlayer.setNaturalOrder(true) (see ISManifest.order()).
+ * Images are decoded with ImageIO: tga frames aren't supported in archives.
+ */
+final class ISArchiveSource implements ISFrameSource {
+
+    // archive file extensions
+    static final String ZIP = "zip";
+    static final String TAR = "tar";
+
+    // zip signatures and compression methods
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    // tar block size
+    private static final int BLOCK = 512;
+
+    // archive
+    private final File file;
+    // per frame: entry path, compression method, sizes
+    private final String[] names;
+    private final int[] methods;
+    private final int[] compressedSizes;
+    // per frame: mapping index and offset of the entry (the zip local header, or the tar entry data)
+    private final int[] segmentIndices;
+    private final int[] segmentOffsets;
+    // mappings of the archive
+    private final MappedByteBuffer[] segments;
+    // zip entries start with a local header
+    private final boolean zip;
+    // downscales frames as they're decoded (null for full size frames)
+    private final ISResampler resampler;
+
+    /**
+     * returns true if a file is an archive frames can be read from (by extension)
+     * @param file
+     * @return
+     */
+    static boolean isArchive(File file){
+        String name = file.getName().toLowerCase();
+        return file.isFile() && (name.endsWith("." + ZIP) || name.endsWith("." + TAR));
+    }
+
+    /**
+     * read the index of an archive and map it
+     * @param file
+     * @param order - file name order (see ISManifest.order())
+     * @param resampler - downscales frames as they're decoded (null for full size frames)
+     * @throws IOException if the archive can't be read or is corrupt
+     */
+    ISArchiveSource(File file, final Comparator<String> order, ISResampler resampler) throws IOException {
+        this.file = file;
+        this.resampler = resampler;
+        zip = file.getName().toLowerCase().endsWith("." + ZIP);
+
+        ArrayList<Entry> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(zip){
+                readZipIndex(channel, entries);
+            }else{
+                readTarIndex(channel, entries);
+            }
+            // frames only, in folder order
+            ArrayList<Entry> frames = new ArrayList<>();
+            for(Entry entry : entries){
+                String name = entry.name.substring(entry.name.lastIndexOf('/') + 1);
+                // skip macOS resource forks
+                if(entry.name.startsWith("__MACOSX/") || name.startsWith("._")) continue;
+                if(ISPlayer.isFrameFile(name) && !name.toLowerCase().endsWith(".tga")) frames.add(entry);
+            }
+            Collections.sort(frames, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return order.compare(a.name, b.name);
+                }
+            });
+
+            int count = frames.size();
+            names = new String[count];
+            methods = new int[count];
+            compressedSizes = new int[count];
+            segmentIndices = new int[count];
+            segmentOffsets = new int[count];
+            // map in archive order, so mappings cover consecutive entries
+            ArrayList<Entry> stored = new ArrayList<>(frames);
+            Collections.sort(stored, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(a.offset, b.offset);
+                }
+            });
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            for(int i = 0; i < count; i++){
+                Entry entry = stored.get(i);
+                entry.mapIndex = i;
+                starts[i] = entry.offset;
+                // zip: the local header's name and extra field may differ in length from the central directory's
+                ends[i] = Math.min(channel.size(), entry.offset + entry.compressedSize + (zip ? LOCAL_HEADER_SIZE + 0xFFFF * 2 : 0));
+            }
+            int[] indices = new int[count];
+            int[] offsets = new int[count];
+            segments = ISPackSource.map(channel, starts, ends, indices, offsets);
+            for(int i = 0; i < count; i++){
+                Entry entry = frames.get(i);
+                names[i] = entry.name;
+                methods[i] = entry.method;
+                compressedSizes[i] = (int)entry.compressedSize;
+                segmentIndices[i] = indices[entry.mapIndex];
+                segmentOffsets[i] = offsets[entry.mapIndex];
+            }
+        }
+    }
+
+    /**
+     * an archive entry
+     */
+    private static final class Entry {
+        final String name;
+        final int method;
+        // offset of the local header (zip) or data (tar)
+        final long offset;
+        final long compressedSize;
+        // index in archive order
+        int mapIndex;
+
+        Entry(String name, int method, long offset, long compressedSize){
+            this.name = name;
+            this.method = method;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+        }
+    }
+
+    /**
+     * read the entries of a zip archive from its central directory
+     */
+    private void readZipIndex(FileChannel channel, ArrayList<Entry> entries) throws IOException {
+        long size = channel.size();
+        // the end of central directory record is followed by a comment of up to 64KB
+        int tailSize = (int)Math.min(size, 22 + 0xFFFF);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        ISPackSource.readFully(channel, tail, size - tailSize);
+        int end = -1;
+        for(int i = tailSize - 22; i >= 0; i--){
+            if(tail.getInt(i) == END_OF_CENTRAL_DIRECTORY){
+                end = i;
+                break;
+            }
+        }
+        if(end < 0) throw new IOException("not a zip archive: " + file);
+
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        // zip64: the real values are in the zip64 end of central directory record
+        if(end >= 20 && tail.getInt(end - 20) == ZIP64_END_LOCATOR){
+            ByteBuffer record = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+            ISPackSource.readFully(channel, record, tail.getLong(end - 12));
+            if(record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) throw new IOException("corrupt zip64 archive: " + file);
+            count = record.getLong(32);
+            directorySize = record.getLong(40);
+            directoryOffset = record.getLong(48);
+        }
+        if(directorySize > Integer.MAX_VALUE) throw new IOException("zip archive index too large: " + file);
+
+        ByteBuffer directory = ByteBuffer.allocate((int)directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        ISPackSource.readFully(channel, directory, directoryOffset);
+        for(long i = 0; i < count; i++){
+            int header = directory.position();
+            if(directory.remaining() < 46 || directory.getInt(header) != CENTRAL_DIRECTORY_HEADER){
+                throw new IOException("corrupt zip archive index: " + file);
+            }
+            int method = directory.getShort(header + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(header + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = directory.getInt(header + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(header + 28) & 0xFFFF;
+            int extraLength = directory.getShort(header + 30) & 0xFFFF;
+            int commentLength = directory.getShort(header + 32) & 0xFFFF;
+            long offset = directory.getInt(header + 42) & 0xFFFFFFFFL;
+            byte[] name = new byte[nameLength];
+            directory.position(header + 46);
+            directory.get(name);
+            // zip64 extra field: 64 bit values for the fields which didn't fit
+            int extra = header + 46 + nameLength;
+            for(int field = extra; field + 4 <= extra + extraLength; ){
+                int id = directory.getShort(field) & 0xFFFF;
+                int length = directory.getShort(field + 2) & 0xFFFF;
+                if(id == 0x0001){
+                    int value = field + 4;
+                    if(uncompressedSize == 0xFFFFFFFFL){ uncompressedSize = directory.getLong(value); value += 8; }
+                    if(compressedSize == 0xFFFFFFFFL){ compressedSize = directory.getLong(value); value += 8; }
+                    if(offset == 0xFFFFFFFFL){ offset = directory.getLong(value); }
+                }
+                field += 4 + length;
+            }
+            directory.position(extra + extraLength + commentLength);
+
+            String path = new String(name, StandardCharsets.UTF_8);
+            if(path.endsWith("/")) continue;
+            if(method != STORED && method != DEFLATED){
+                System.err.println("unsupported compression method " + method + " for " + path + " in " + file);
+                continue;
+            }
+            if(compressedSize > Integer.MAX_VALUE){
+                System.err.println("entry too large: " + path + " in " + file);
+                continue;
+            }
+            entries.add(new Entry(path, method, offset, compressedSize));
+        }
+    }
+
+    /**
+     * read the entries of a tar archive from its headers
+     */
+    private void readTarIndex(FileChannel channel, ArrayList<Entry> entries) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(BLOCK);
+        long position = 0;
+        // GNU long name or pax path of the next entry
+        String longName = null;
+        while(position + BLOCK <= size){
+            header.clear();
+            ISPackSource.readFully(channel, header, position);
+            byte[] block = header.array();
+            // two empty blocks end the archive
+            if(block[0] == 0) break;
+
+            String name = string(block, 0, 100);
+            long length = octal(block, 124, 12);
+            char type = (char)block[156];
+            if(string(block, 257, 6).startsWith("ustar")){
+                String prefix = string(block, 345, 155);
+                if(!prefix.isEmpty()) name = prefix + "/" + name;
+            }
+            if(length < 0) throw new IOException("corrupt tar archive: " + file);
+            long data = position + BLOCK;
+            position = data + (length + BLOCK - 1) / BLOCK * BLOCK;
+
+            if(type == 'L' || type == 'x'){
+                // the entry's data names the next entry
+                ByteBuffer content = ByteBuffer.allocate((int)Math.min(length, 0xFFFFF));
+                ISPackSource.readFully(channel, content, data);
+                String text = new String(content.array(), StandardCharsets.UTF_8);
+                longName = type == 'L' ? text.trim() : paxPath(text, longName);
+                continue;
+            }
+            if(longName != null){
+                name = longName;
+                longName = null;
+            }
+            // regular files only
+            if(type != '0' && type != 0) continue;
+            if(length > Integer.MAX_VALUE){
+                System.err.println("entry too large: " + name + " in " + file);
+                continue;
+            }
+            entries.add(new Entry(name, STORED, data, length));
+        }
+    }
+
+    /**
+     * returns the path of a pax extended header ("length path=value" records)
+     * @param records
+     * @param fallback - returned if there's no path record
+     * @return
+     */
+    private static String paxPath(String records, String fallback){
+        for(String record : records.split("\n")){
+            int key = record.indexOf(" path=");
+            if(key >= 0) return record.substring(key + 6);
+        }
+        return fallback;
+    }
+
+    /**
+     * read a NUL terminated string from a tar header
+     */
+    private static String string(byte[] block, int offset, int length){
+        int end = offset;
+        while(end < offset + length && block[end] != 0) end++;
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * read an octal number from a tar header
+     * @return the number or -1 if the field isn't octal
+     */
+    private static long octal(byte[] block, int offset, int length){
+        long value = 0;
+        for(int i = offset; i < offset + length; i++){
+            byte digit = block[i];
+            if(digit == 0 || digit == ' ') continue;
+            if(digit < '0' || digit > '7') return -1;
+            value = value * 8 + (digit - '0');
+        }
+        return value;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int width(int index) {
+        return 0;
+    }
+
+    public int height(int index) {
+        return 0;
+    }
+
+    public PImage load(int index) {
+        // each thread reads through its own view of the mapping
+        ByteBuffer data = segments[segmentIndices[index]].duplicate();
+        int offset = segmentOffsets[index];
+        if(zip){
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if(data.getInt(offset) != LOCAL_FILE_HEADER){
+                System.err.println("corrupt entry " + names[index] + " in " + file);
+                return null;
+            }
+            offset += LOCAL_HEADER_SIZE + (data.getShort(offset + 26) & 0xFFFF) + (data.getShort(offset + 28) & 0xFFFF);
+        }
+        if(offset + compressedSizes[index] > data.capacity()){
+            System.err.println("truncated entry " + names[index] + " in " + file);
+            return null;
+        }
+        data.position(offset);
+        data.limit(offset + compressedSizes[index]);
+
+        InputStream input = new ByteBufferInputStream(data);
+        // zip entries are raw deflate streams
+        Inflater inflater = methods[index] == DEFLATED ? new Inflater(true) : null;
+        if(inflater != null){
+            input = new InflaterInputStream(input, inflater, 64 * 1024);
+        }
+        // cache in memory rather than in temporary files
+        try (ImageInputStream images = new MemoryCacheImageInputStream(input)) {
+            return ISFolderSource.read(images, resampler);
+        } catch (Exception e) {
+            System.err.println("couldn't decode " + names[index] + " in " + file + ": " + e.getLocalizedMessage());
+            return null;
+        } finally {
+            if(inflater != null) inflater.end();
+        }
+    }
+
+    public String describe(int index) {
+        return file.getAbsolutePath() + " (" + names[index] + ")";
+    }
+
+    /**
+     * reads a mapped entry without copying it
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if(length == 0) return 0;
+            if(!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.hirschandmann.image;
+
+/**
+ * A frame which is a region of a sprite sheet (see ISAtlasSource): it references the atlas' pixels
+ * instead of holding its own, the region is copied out when the frame is presented.
+ * Regions may be trimmed (transparent borders cropped when packing) and rotated 90 degrees clockwise.
+ * Until its pixels are loaded, evicting the frame wouldn't free any memory: the atlas stays decoded as long as the sequence is open.
+ */
+final class ISAtlasFrame extends ISEncodedFrame {
+
+    // pixels of the whole atlas, shared by all its frames
+    private final int[] atlas;
+    private final int atlasWidth;
+    // top left corner of the region in the atlas
+    private final int x;
+    private final int y;
+    // size of the region before rotation (the trimmed frame)
+    private final int regionWidth;
+    private final int regionHeight;
+    // where the region goes in the frame (trimmed frames)
+    private final int offsetX;
+    private final int offsetY;
+    // region stored rotated 90 degrees clockwise in the atlas
+    private final boolean rotated;
+
+    ISAtlasFrame(int[] atlas, int atlasWidth, int format, int x, int y, int regionWidth, int regionHeight, boolean rotated,
+            int offsetX, int offsetY, int width, int height){
+        super(width, height, format);
+        this.atlas = atlas;
+        this.atlasWidth = atlasWidth;
+        this.x = x;
+        this.y = y;
+        this.regionWidth = regionWidth;
+        this.regionHeight = regionHeight;
+        this.rotated = rotated;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    void expand(int[] argb){
+        // trimmed borders are transparent
+        if(offsetX != 0 || offsetY != 0 || regionWidth != width || regionHeight != height){
+            java.util.Arrays.fill(argb, 0, width * height, 0);
+        }
+        if(!rotated){
+            for(int row = 0; row < regionHeight; row++){
+                System.arraycopy(atlas, (y + row) * atlasWidth + x, argb, (offsetY + row) * width + offsetX, regionWidth);
+            }
+            return;
+        }
+        // the region's rows are the atlas' columns, right to left
+        for(int row = 0; row < regionHeight; row++){
+            int target = (offsetY + row) * width + offsetX;
+            int source = y * atlasWidth + x + regionHeight - 1 - row;
+            for(int column = 0; column < regionWidth; column++, source += atlasWidth){
+                argb[target + column] = atlas[source];
+            }
+        }
+    }
+
+    long bytes(){
+        // the atlas is counted once for the whole sequence (see ISFrameSource.sharedBytes())
+        return pixels != null ? pixels.length * 4L : 0;
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Frames cut out of a single sprite sheet image, laid out by a JSON descriptor
+ * in the format TexturePacker and Aseprite export ("JSON Hash" or "JSON Array"):
+ * <pre>
+ * { "frames": { "walk-01.png": { "frame": {"x":0,"y":0,"w":64,"h":64}, "rotated": false,
+ *                                "spriteSourceSize": {"x":0,"y":0,"w":64,"h":64}, "sourceSize": {"w":64,"h":64} }, ... },
+ *   "meta": { "image": "walk.png" } }
+ * </pre>
+ * Frames are played in the array's order, or sorted by name (numbers by value) for a hash.
+ * The atlas is decoded once, when the first frame is loaded: frames are views of its pixels (see ISAtlasFrame).
+ */
+final class ISAtlasSource implements ISFrameSource {
+
+    // descriptor file extension
+    static final String EXTENSION = "json";
+
+    // sketch used to load the atlas
+    private final PApplet parent;
+    // descriptor and atlas image
+    private final File layout;
+    private final String imagePath;
+    // frame names (for error messages)
+    private final String[] names;
+    // per frame: region in the atlas (size before rotation) and rotation
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] regionWidths;
+    private final int[] regionHeights;
+    private final boolean[] rotated;
+    // per frame: where the region goes in the frame and the frame's size (trimmed frames)
+    private final int[] offsetXs;
+    private final int[] offsetYs;
+    private final int[] widths;
+    private final int[] heights;
+    // downscales frames as they're loaded (null for full size frames)
+    private final ISResampler resampler;
+    // decoded atlas (null until the first frame is loaded)
+    private volatile PImage atlas;
+    // the atlas couldn't be decoded
+    private boolean failed;
+
+    /**
+     * read a sprite sheet descriptor
+     * @param parent
+     * @param layout - JSON descriptor
+     * @param resampler - downscales frames as they're loaded (null for full size frames)
+     * @throws IOException if the descriptor can't be read or has no frames
+     */
+    ISAtlasSource(PApplet parent, File layout, ISResampler resampler) throws IOException {
+        this.parent = parent;
+        this.layout = layout;
+        this.resampler = resampler;
+
+        JSONObject json;
+        try (Reader reader = new FileReader(layout)) {
+            json = new JSONObject(reader);
+        } catch (RuntimeException e) {
+            throw new IOException("invalid sprite sheet descriptor: " + layout + " (" + e.getLocalizedMessage() + ")");
+        }
+        JSONObject meta = json.getJSONObject("meta");
+        String image = meta != null ? meta.getString("image", null) : null;
+        if(image == null){
+            throw new IOException("sprite sheet descriptor doesn't name its image (meta.image): " + layout);
+        }
+        File imageFile = new File(image);
+        if(!imageFile.isAbsolute()) imageFile = new File(layout.getAbsoluteFile().getParentFile(), image);
+        imagePath = imageFile.getAbsolutePath();
+
+        // "JSON Array": frames in order, "JSON Hash": frames by name
+        ArrayList<JSONObject> frames = new ArrayList<>();
+        ArrayList<String> frameNames = new ArrayList<>();
+        Object list = json.get("frames");
+        if(list instanceof JSONArray){
+            JSONArray array = (JSONArray)list;
+            for(int i = 0; i < array.size(); i++){
+                JSONObject frame = array.getJSONObject(i);
+                frames.add(frame);
+                frameNames.add(frame.getString("filename", String.valueOf(i)));
+            }
+        }else if(list instanceof JSONObject){
+            JSONObject hash = (JSONObject)list;
+            for(Object key : hash.keys()){
+                frameNames.add((String)key);
+            }
+            Collections.sort(frameNames, ISManifest.NATURAL_ORDER);
+            for(String name : frameNames){
+                frames.add(hash.getJSONObject(name));
+            }
+        }
+        if(frames.isEmpty()){
+            throw new IOException("no frames in sprite sheet descriptor: " + layout);
+        }
+
+        int numFrames = frames.size();
+        names = frameNames.toArray(new String[numFrames]);
+        xs = new int[numFrames];
+        ys = new int[numFrames];
+        regionWidths = new int[numFrames];
+        regionHeights = new int[numFrames];
+        rotated = new boolean[numFrames];
+        offsetXs = new int[numFrames];
+        offsetYs = new int[numFrames];
+        widths = new int[numFrames];
+        heights = new int[numFrames];
+        for(int i = 0; i < numFrames; i++){
+            JSONObject frame = frames.get(i);
+            JSONObject region = frame.getJSONObject("frame");
+            if(region == null){
+                throw new IOException("frame " + names[i] + " has no region in sprite sheet descriptor: " + layout);
+            }
+            xs[i] = region.getInt("x", 0);
+            ys[i] = region.getInt("y", 0);
+            regionWidths[i] = region.getInt("w", 0);
+            regionHeights[i] = region.getInt("h", 0);
+            rotated[i] = frame.getBoolean("rotated", false);
+            // trimmed frames: the region sits at an offset within the original frame size
+            JSONObject trimmed = frame.getJSONObject("spriteSourceSize");
+            JSONObject source = frame.getJSONObject("sourceSize");
+            offsetXs[i] = trimmed != null ? trimmed.getInt("x", 0) : 0;
+            offsetYs[i] = trimmed != null ? trimmed.getInt("y", 0) : 0;
+            widths[i] = source != null ? source.getInt("w", regionWidths[i]) : regionWidths[i];
+            heights[i] = source != null ? source.getInt("h", regionHeights[i]) : regionHeights[i];
+            if(regionWidths[i] <= 0 || regionHeights[i] <= 0
+                    || offsetXs[i] < 0 || offsetYs[i] < 0
+                    || offsetXs[i] + regionWidths[i] > widths[i] || offsetYs[i] + regionHeights[i] > heights[i]){
+                throw new IOException("invalid region for frame " + names[i] + " in sprite sheet descriptor: " + layout);
+            }
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int width(int index) {
+        return resampler != null ? resampler.width(widths[index], heights[index]) : widths[index];
+    }
+
+    public int height(int index) {
+        return resampler != null ? resampler.height(widths[index], heights[index]) : heights[index];
+    }
+
+    public PImage load(int index) {
+        PImage atlas = atlas();
+        if(atlas == null) return null;
+
+        // the region (rotated or not) must lie within the atlas
+        int atlasWidth = rotated[index] ? regionHeights[index] : regionWidths[index];
+        int atlasHeight = rotated[index] ? regionWidths[index] : regionHeights[index];
+        if(xs[index] < 0 || ys[index] < 0 || xs[index] + atlasWidth > atlas.width || ys[index] + atlasHeight > atlas.height){
+            System.err.println("frame " + names[index] + " lies outside of the sprite sheet " + imagePath);
+            return null;
+        }
+        ISAtlasFrame frame = new ISAtlasFrame(atlas.pixels, atlas.width, atlas.format, xs[index], ys[index],
+                regionWidths[index], regionHeights[index], rotated[index], offsetXs[index], offsetYs[index], widths[index], heights[index]);
+        if(resampler == null) return frame;
+        // downscaled frames can't be views of the full size atlas
+        frame.loadPixels();
+        return resampler.resample(frame);
+    }
+
+    /**
+     * decode the atlas the first time a frame needs it (the other decode threads wait for it)
+     * @return the atlas or null if it couldn't be decoded
+     */
+    private synchronized PImage atlas(){
+        if(atlas == null && !failed){
+            PImage image = parent.loadImage(imagePath);
+            if(image == null || image.width <= 0 || image.height <= 0 || image.pixels == null){
+                System.err.println("couldn't load sprite sheet: " + imagePath + " (" + layout + ")");
+                failed = true;
+                return null;
+            }
+            atlas = image;
+        }
+        return atlas;
+    }
+
+    public String describe(int index) {
+        return imagePath + " (" + names[index] + ")";
+    }
+
+    public long sharedBytes() {
+        // read without waiting for the atlas to decode
+        PImage atlas = this.atlas;
+        return atlas != null ? atlas.pixels.length * 4L : 0;
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.hirschandmann.image;
+
+import processing.core.PImage;
+
+/**
+ * A frame stored in less memory than ARGB ints:
+ * 8-bit indices into a palette for frames with up to 256 colours (1 byte per pixel),
+ * otherwise packed RGB bytes for opaque frames (3 bytes per pixel).
+ */
+final class ISCompactFrame extends ISEncodedFrame {
+
+    // maximum number of colours of a palette frame
+    private static final int MAX_COLORS = 256;
+
+    // palette indices (1 byte per pixel) or packed RGB (3 bytes per pixel)
+    private final byte[] data;
+    // ARGB colours for palette frames, null for packed RGB frames
+    private final int[] palette;
+
+    private ISCompactFrame(int width, int height, int format, byte[] data, int[] palette){
+        super(width, height, format);
+        this.data = data;
+        this.palette = palette;
+    }
+
+    /**
+     * store a frame in a compact form if its content allows it
+     * @param frame - decoded ARGB frame
+     * @return a compact frame or the frame itself if it can't be stored in less memory
+     */
+    static PImage compact(PImage frame){
+        int[] pixels = frame.pixels;
+        if(pixels == null || pixels.length != frame.width * frame.height || frame.pixelDensity != 1) return frame;
+
+        int[] palette = findPalette(pixels);
+        if(palette != null){
+            byte[] indices = new byte[pixels.length];
+            // palette is sorted: look up each run of identical pixels once
+            int previous = pixels[0];
+            int index = java.util.Arrays.binarySearch(palette, previous);
+            for(int i = 0; i < pixels.length; i++){
+                if(pixels[i] != previous){
+                    previous = pixels[i];
+                    index = java.util.Arrays.binarySearch(palette, previous);
+                }
+                indices[i] = (byte)index;
+            }
+            return new ISCompactFrame(frame.width, frame.height, frame.format, indices, palette);
+        }
+
+        // packed RGB only works if there's no transparency
+        for(int i = 0; i < pixels.length; i++){
+            if((pixels[i] >>> 24) != 0xFF) return frame;
+        }
+        byte[] rgb = new byte[pixels.length * 3];
+        for(int i = 0, j = 0; i < pixels.length; i++){
+            int argb = pixels[i];
+            rgb[j++] = (byte)(argb >> 16);
+            rgb[j++] = (byte)(argb >> 8);
+            rgb[j++] = (byte)argb;
+        }
+        return new ISCompactFrame(frame.width, frame.height, RGB, rgb, null);
+    }
+
+    /**
+     * collect the distinct colours of a frame
+     * @param pixels
+     * @return sorted colours or null if there are more than MAX_COLORS
+     */
+    private static int[] findPalette(int[] pixels){
+        // open addressing set of colours, sized to stay at most half full
+        int[] table = new int[MAX_COLORS * 2];
+        boolean[] used = new boolean[MAX_COLORS * 2];
+        int mask = table.length - 1;
+        int numColors = 0;
+        int previous = ~pixels[0];
+        for(int i = 0; i < pixels.length; i++){
+            int argb = pixels[i];
+            // runs of identical pixels are common
+            if(argb == previous) continue;
+            previous = argb;
+
+            int slot = (argb * 0x9E3779B9) >>> 23 & mask;
+            while(used[slot] && table[slot] != argb){
+                slot = (slot + 1) & mask;
+            }
+            if(!used[slot]){
+                if(++numColors > MAX_COLORS) return null;
+                used[slot] = true;
+                table[slot] = argb;
+            }
+        }
+        int[] palette = new int[numColors];
+        for(int i = 0, j = 0; i < table.length; i++){
+            if(used[i]) palette[j++] = table[i];
+        }
+        java.util.Arrays.sort(palette);
+        return palette;
+    }
+
+    void expand(int[] argb){
+        int numPixels = width * height;
+        if(palette != null){
+            for(int i = 0; i < numPixels; i++){
+                argb[i] = palette[data[i] & 0xFF];
+            }
+        }else{
+            for(int i = 0, j = 0; i < numPixels; i++, j += 3){
+                argb[i] = 0xFF000000 | (data[j] & 0xFF) << 16 | (data[j + 1] & 0xFF) << 8 | (data[j + 2] & 0xFF);
+            }
+        }
+    }
+
+    long bytes(){
+        return data.length + (palette != null ? palette.length * 4L : 0) + (pixels != null ? pixels.length * 4L : 0);
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.hirschandmann.image;
+
+import java.util.ArrayList;
+
+/**
+ * Decode pool shared by all image sequence players in a sketch.
+ * A fixed budget of worker threads repeatedly picks, across all sequences with pending frames,
+ * the frame closest (ahead) to one of its players' playheads, so seeking re-prioritises decoding right away.
+ */
+final class ISDecoder implements Runnable {
+
+    // default thread budget: leave a core for the animation thread
+    private static int maxThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // number of worker threads currently alive
+    private static int numThreads;
+    // sequences which may have frames waiting to be decoded
+    private static final ArrayList<ISSequence> sequences = new ArrayList<>();
+    // guards the sequence list and the thread count
+    private static final Object lock = new Object();
+
+    private ISDecoder(){}
+
+    /**
+     * change the number of threads shared by all players to decode frames
+     * @param threads
+     */
+    static void setMaxThreads(int threads){
+        synchronized (lock) {
+            maxThreads = Math.max(1, threads);
+            startThreads();
+            // wake idle threads so any extra ones can exit
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * returns the number of threads shared by all players to decode frames
+     * @return
+     */
+    static int getMaxThreads(){
+        synchronized (lock) {
+            return maxThreads;
+        }
+    }
+
+    /**
+     * notify the pool a sequence has (new) frames to decode
+     * @param sequence
+     */
+    static void request(ISSequence sequence){
+        synchronized (lock) {
+            if(!sequences.contains(sequence)){
+                sequences.add(sequence);
+            }
+            startThreads();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * stop decoding frames for a sequence (frames already being decoded are discarded by the sequence)
+     * @param sequence
+     */
+    static void cancel(ISSequence sequence){
+        synchronized (lock) {
+            sequences.remove(sequence);
+        }
+    }
+
+    /**
+     * start worker threads until the budget is met, call while holding the lock
+     */
+    private static void startThreads(){
+        while(numThreads < maxThreads){
+            numThreads++;
+            Thread thread = new Thread(new ISDecoder());
+            thread.setName("[ISPlayer - decoder " + numThreads + "]");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * pick the sequence whose next frame to decode is closest to a playhead and claim that frame,
+     * blocking until there's work (or returning null if this thread is over budget)
+     * @param claimed - receives the claimed frame index
+     * @return the sequence owning the claimed frame or null if the thread should exit
+     */
+    private static ISSequence claim(int[] claimed){
+        synchronized (lock) {
+            while(true){
+                if(numThreads > maxThreads){
+                    numThreads--;
+                    return null;
+                }
+
+                ISSequence nearest = null;
+                int nearestDistance = Integer.MAX_VALUE;
+                for(int i = sequences.size() - 1; i >= 0; i--){
+                    ISSequence sequence = sequences.get(i);
+                    int distance = sequence.pendingFrameDistance();
+                    // nothing left to decode for this sequence
+                    if(distance < 0){
+                        sequences.remove(i);
+                    }else if(distance < nearestDistance){
+                        nearest = sequence;
+                        nearestDistance = distance;
+                    }
+                }
+
+                if(nearest != null){
+                    int index = nearest.claimPendingFrame();
+                    if(index >= 0){
+                        claimed[0] = index;
+                        return nearest;
+                    }
+                    continue;
+                }
+
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    numThreads--;
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * worker loop: handled by the decode threads, don't call manually
+     */
+    public void run() {
+        int[] claimed = new int[1];
+        ISSequence sequence;
+        while((sequence = claim(claimed)) != null){
+            try{
+                sequence.decodeFrame(claimed[0]);
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
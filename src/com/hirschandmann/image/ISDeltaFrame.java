@@ -0,0 +1,167 @@
+package com.hirschandmann.image;
+
+import processing.core.PImage;
+
+/**
+ * A frame stored as the tiles which differ from its keyframe.
+ * Rebuilding it costs a copy of the keyframe plus the changed tiles,
+ * or only the changed tiles of two frames when the buffer already holds a frame of the same keyframe.
+ */
+final class ISDeltaFrame extends ISEncodedFrame {
+
+    // tile size in pixels
+    static final int TILE_SIZE = 16;
+    // only keep a delta if at most this fraction of the tiles changed
+    private static final float MAX_CHANGED_TILES = 0.5f;
+
+    // keyframe this frame is a delta of
+    final PImage key;
+    // number of tile columns
+    private final int columns;
+    // indices of the changed tiles (row * columns + column)
+    private final int[] tiles;
+    // ARGB pixels of the changed tiles, one after the other (edge tiles are cropped)
+    private final int[] data;
+
+    private ISDeltaFrame(PImage key, int columns, int[] tiles, int[] data){
+        super(key.width, key.height, key.format);
+        this.key = key;
+        this.columns = columns;
+        this.tiles = tiles;
+        this.data = data;
+    }
+
+    /**
+     * store a frame as the tiles which differ from a keyframe
+     * @param frame - decoded ARGB frame
+     * @param key - keyframe with the same dimensions
+     * @return a delta frame or the frame itself if too much of it changed
+     */
+    static PImage encode(PImage frame, PImage key){
+        int width = frame.width;
+        int height = frame.height;
+        int[] pixels = frame.pixels;
+        if(key.width != width || key.height != height || pixels == null || pixels.length != width * height) return frame;
+
+        int[] keyPixels = pixels(key);
+        if(keyPixels == null) return frame;
+
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int maxTiles = (int)(columns * rows * MAX_CHANGED_TILES);
+
+        int[] tiles = new int[Math.max(1, maxTiles)];
+        int numTiles = 0;
+        int numPixels = 0;
+        for(int row = 0; row < rows; row++){
+            for(int column = 0; column < columns; column++){
+                if(tileChanged(pixels, keyPixels, width, height, column, row)){
+                    if(numTiles == maxTiles) return frame;
+                    tiles[numTiles++] = row * columns + column;
+                    numPixels += tileWidth(width, column) * tileHeight(height, row);
+                }
+            }
+        }
+
+        int[] data = new int[numPixels];
+        int offset = 0;
+        for(int t = 0; t < numTiles; t++){
+            int column = tiles[t] % columns;
+            int row = tiles[t] / columns;
+            int tileWidth = tileWidth(width, column);
+            int tileHeight = tileHeight(height, row);
+            for(int y = 0; y < tileHeight; y++){
+                System.arraycopy(pixels, (row * TILE_SIZE + y) * width + column * TILE_SIZE, data, offset, tileWidth);
+                offset += tileWidth;
+            }
+        }
+        return new ISDeltaFrame(key, columns, java.util.Arrays.copyOf(tiles, numTiles), data);
+    }
+
+    /**
+     * returns the ARGB pixels of a keyframe, expanding encoded keyframes
+     */
+    private static int[] pixels(PImage key){
+        if(key instanceof ISEncodedFrame && key.pixels == null){
+            int[] expanded = new int[key.width * key.height];
+            ((ISEncodedFrame)key).expand(expanded);
+            return expanded;
+        }
+        return key.pixels != null && key.pixels.length == key.width * key.height ? key.pixels : null;
+    }
+
+    private static boolean tileChanged(int[] pixels, int[] keyPixels, int width, int height, int column, int row){
+        int tileWidth = tileWidth(width, column);
+        int tileHeight = tileHeight(height, row);
+        for(int y = 0; y < tileHeight; y++){
+            int start = (row * TILE_SIZE + y) * width + column * TILE_SIZE;
+            for(int i = start; i < start + tileWidth; i++){
+                if(pixels[i] != keyPixels[i]) return true;
+            }
+        }
+        return false;
+    }
+
+    private static int tileWidth(int width, int column){
+        return Math.min(TILE_SIZE, width - column * TILE_SIZE);
+    }
+
+    private static int tileHeight(int height, int row){
+        return Math.min(TILE_SIZE, height - row * TILE_SIZE);
+    }
+
+    void expand(int[] argb){
+        if(key instanceof ISEncodedFrame && key.pixels == null){
+            ((ISEncodedFrame)key).expand(argb);
+        }else{
+            System.arraycopy(key.pixels, 0, argb, 0, width * height);
+        }
+        patch(argb);
+    }
+
+    /**
+     * copy this frame's changed tiles over a frame of the same keyframe
+     * @param argb
+     */
+    void patch(int[] argb){
+        int offset = 0;
+        for(int t = 0; t < tiles.length; t++){
+            int column = tiles[t] % columns;
+            int row = tiles[t] / columns;
+            int tileWidth = tileWidth(width, column);
+            int tileHeight = tileHeight(height, row);
+            for(int y = 0; y < tileHeight; y++){
+                System.arraycopy(data, offset, argb, (row * TILE_SIZE + y) * width + column * TILE_SIZE, tileWidth);
+                offset += tileWidth;
+            }
+        }
+    }
+
+    /**
+     * undo this frame's changed tiles: copy the keyframe's tiles back over them
+     * @param argb - a frame of the same keyframe, with this frame's tiles applied last
+     */
+    void restore(int[] argb){
+        int[] keyPixels = key.pixels;
+        // an encoded keyframe without pixels is expanded as a whole instead
+        if(keyPixels == null){
+            ((ISEncodedFrame)key).expand(argb);
+            return;
+        }
+        for(int t = 0; t < tiles.length; t++){
+            int column = tiles[t] % columns;
+            int row = tiles[t] / columns;
+            int tileWidth = tileWidth(width, column);
+            int tileHeight = tileHeight(height, row);
+            for(int y = 0; y < tileHeight; y++){
+                int start = (row * TILE_SIZE + y) * width + column * TILE_SIZE;
+                System.arraycopy(keyPixels, start, argb, start, tileWidth);
+            }
+        }
+    }
+
+    long bytes(){
+        return tiles.length * 4L + data.length * 4L + (pixels != null ? pixels.length * 4L : 0);
+    }
+
+}
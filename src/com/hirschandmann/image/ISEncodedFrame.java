@@ -0,0 +1,47 @@
+package com.hirschandmann.image;
+
+import processing.core.PImage;
+
+/**
+ * A frame stored in a form other than ARGB pixels (see ISCompactFrame, ISDeltaFrame).
+ * The frame's pixels stay null until loadPixels() is called,
+ * the player expands the frame into its own buffer only when presenting it.
+ */
+abstract class ISEncodedFrame extends PImage {
+
+    ISEncodedFrame(int width, int height, int format){
+        super();
+        this.width = width;
+        this.height = height;
+        this.pixelWidth = width;
+        this.pixelHeight = height;
+        this.format = format;
+        this.pixels = null;
+    }
+
+    /**
+     * expand this frame into ARGB pixels
+     * @param argb - destination, at least width * height long
+     */
+    abstract void expand(int[] argb);
+
+    /**
+     * returns the number of bytes this frame's data takes
+     * @return
+     */
+    abstract long bytes();
+
+    /**
+     * expands the frame into pixels (which then take as much memory as an ARGB frame)
+     */
+    @Override
+    public void loadPixels(){
+        if(pixels == null){
+            int[] expanded = new int[width * height];
+            expand(expanded);
+            pixels = expanded;
+        }
+        super.loadPixels();
+    }
+
+}
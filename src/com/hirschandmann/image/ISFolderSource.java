@@ -0,0 +1,155 @@
+package com.hirschandmann.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Frames loaded from individual image files (typically a folder of images)
+ */
+final class ISFolderSource implements ISFrameSource {
+
+    // sketch used to load images
+    private final PApplet parent;
+    // absolute paths of the frames, in playback order (replaced by longer arrays when frames are appended)
+    private volatile String[] paths;
+    // file name order of the frames (see ISManifest.order())
+    final Comparator<String> order;
+    // frame dimensions as listed in the folder's manifest (0 if unknown)
+    private volatile int[] widths;
+    private volatile int[] heights;
+    // downscales frames as they're decoded (null for full size frames)
+    private final ISResampler resampler;
+
+    ISFolderSource(PApplet parent, ISManifest manifest, ISResampler resampler){
+        this.parent = parent;
+        this.paths = manifest.paths;
+        this.order = manifest.order;
+        this.widths = manifest.widths;
+        this.heights = manifest.heights;
+        this.resampler = resampler;
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * add frames written to the folder since it was listed (see ISWatcher)
+     * @param added - absolute paths, in playback order
+     */
+    synchronized void append(String[] added){
+        int size = paths.length;
+        String[] appended = Arrays.copyOf(paths, size + added.length);
+        System.arraycopy(added, 0, appended, size, added.length);
+        // dimensions are read as the frames decode
+        widths = Arrays.copyOf(widths, appended.length);
+        heights = Arrays.copyOf(heights, appended.length);
+        paths = appended;
+    }
+
+    /**
+     * returns true if a file is one of the frames
+     * @param path - absolute path
+     * @return
+     */
+    boolean contains(String path){
+        // paths are in playback order, which is file name order
+        return Arrays.binarySearch(paths, path, order) >= 0;
+    }
+
+    /**
+     * returns the path of the last frame
+     * @return null if there are no frames
+     */
+    String lastPath(){
+        String[] paths = this.paths;
+        return paths.length > 0 ? paths[paths.length - 1] : null;
+    }
+
+    public int width(int index) {
+        int width = widths[index];
+        if(width <= 0 || heights[index] <= 0) return 0;
+        return resampler != null ? resampler.width(width, heights[index]) : width;
+    }
+
+    public int height(int index) {
+        int height = heights[index];
+        if(height <= 0 || widths[index] <= 0) return 0;
+        return resampler != null ? resampler.height(widths[index], height) : height;
+    }
+
+    public PImage load(int index) {
+        if(resampler == null) return parent.loadImage(paths[index]);
+
+        PImage frame = loadSubsampled(paths[index]);
+        if(frame != null) return frame;
+        // not an ImageIO format
+        frame = parent.loadImage(paths[index]);
+        return frame != null && frame.width > 0 ? resampler.resample(frame) : frame;
+    }
+
+    /**
+     * decode an image skipping the pixels the resampler doesn't need, then downscale it
+     * (formats ImageIO can't read, e.g. tga, are left to the sketch)
+     * @param path
+     * @return the downscaled image or null
+     */
+    private PImage loadSubsampled(String path){
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(path))) {
+            return read(input, resampler);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * decode an image with ImageIO, skipping the pixels a resampler doesn't need before downscaling it
+     * @param input
+     * @param resampler - null for a full size image
+     * @return the image or null if ImageIO can't read it
+     * @throws IOException if the image is corrupt
+     */
+    static PImage read(ImageInputStream input, ISResampler resampler) throws IOException {
+        Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+        if(readers == null || !readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+
+            int originalWidth = reader.getWidth(0);
+            int originalHeight = reader.getHeight(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if(resampler != null){
+                int period = resampler.subsampling(originalWidth, originalHeight);
+                param.setSourceSubsampling(period, period, 0, 0);
+            }
+            BufferedImage image = reader.read(0, param);
+
+            int width = image.getWidth();
+            int height = image.getHeight();
+            PImage frame = new PImage(width, height, image.getColorModel().hasAlpha() ? PConstants.ARGB : PConstants.RGB);
+            image.getRGB(0, 0, width, height, frame.pixels, 0, width);
+            return resampler != null ? resampler.resample(frame, originalWidth, originalHeight) : frame;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    public String describe(int index) {
+        return paths[index];
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.hirschandmann.image;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free hand-off of presented frames from the thread moving the playhead (writer)
+ * to the sketch's animation thread (reader), using three slots:
+ * the writer fills its back slot and swaps it with the middle one,
+ * the reader swaps its front slot with the middle one whenever a newer frame was published.
+ * The reader never blocks and never sees a slot the writer is still filling.
+ * Slots either reference a frame's own pixels (zero-copy) or own a buffer frames are copied into.
+ * There must be a single writer at a time (callers serialise writes).
+ */
+final class ISFrameBuffer {
+
+    // slot index bits of the state
+    private static final int INDEX_MASK = 3;
+    // state flag: the middle slot holds a frame the reader hasn't taken yet
+    private static final int FRESH = 4;
+
+    // slot contents: pixels and dimensions
+    private final int[][] pixels = new int[3][];
+    private final int[] widths = new int[3];
+    private final int[] heights = new int[3];
+    // buffers owned by this, kept while a slot references a frame's pixels instead
+    private final int[][] buffers = new int[3][];
+    // encoded frame a slot's buffer was last filled with, so delta frames can be patched in incrementally
+    private final Object[] contents = new Object[3];
+    // middle slot index and fresh flag
+    private final AtomicInteger state = new AtomicInteger(1);
+    // slot owned by the writer
+    private int back = 0;
+    // slot owned by the reader
+    private int front = 2;
+
+    /**
+     * writer: publish a frame
+     * @param frame - the frame's pixels
+     * @param width
+     * @param height
+     * @param copy - copy the pixels into a buffer owned by this instead of referencing them
+     */
+    void publish(int[] frame, int width, int height, boolean copy){
+        if(copy){
+            System.arraycopy(frame, 0, ownedBack(width * height), 0, width * height);
+            contents[back] = null;
+        }else{
+            // the buffer (and what it holds) is kept for the next encoded frame
+            pixels[back] = frame;
+        }
+        swap(width, height);
+    }
+
+    /**
+     * writer: publish an encoded frame, expanded into a buffer owned by this.
+     * A delta frame only patches the tiles which differ from what the buffer already holds,
+     * if that is its keyframe or another delta of the same keyframe
+     * @param frame
+     * @param copy - true if the reader may modify the pixels (the buffer's content can't be relied on)
+     */
+    void publish(ISEncodedFrame frame, boolean copy){
+        int[] buffer = ownedBack(frame.width * frame.height);
+        Object previous = copy ? null : contents[back];
+        if(frame instanceof ISDeltaFrame){
+            ISDeltaFrame delta = (ISDeltaFrame)frame;
+            if(previous == delta.key){
+                delta.patch(buffer);
+            }else if(previous instanceof ISDeltaFrame && ((ISDeltaFrame)previous).key == delta.key){
+                if(previous != delta){
+                    ((ISDeltaFrame)previous).restore(buffer);
+                    delta.patch(buffer);
+                }
+            }else{
+                delta.expand(buffer);
+            }
+        }else if(previous != frame){
+            frame.expand(buffer);
+        }
+        contents[back] = copy ? null : frame;
+        swap(frame.width, frame.height);
+    }
+
+    /**
+     * writer: make sure the back slot presents its own buffer, of the right size
+     * @param numPixels
+     * @return the back slot's buffer
+     */
+    private int[] ownedBack(int numPixels){
+        if(buffers[back] == null || buffers[back].length != numPixels){
+            buffers[back] = new int[numPixels];
+            contents[back] = null;
+        }
+        pixels[back] = buffers[back];
+        return pixels[back];
+    }
+
+    /**
+     * writer: hand the filled back slot over and take the middle one (which the reader isn't using) in exchange
+     * @param width
+     * @param height
+     */
+    private void swap(int width, int height){
+        widths[back] = width;
+        heights[back] = height;
+        back = state.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * returns the memory taken by the buffers owned by this (read from any thread, for statistics only)
+     * @return bytes
+     */
+    long bytes(){
+        long bytes = 0;
+        for(int[] buffer : buffers){
+            if(buffer != null) bytes += buffer.length * 4L;
+        }
+        return bytes;
+    }
+    
+    /**
+     * reader: take the most recently published frame, if there's one the reader hasn't taken yet
+     * @return true if pixels(), width() and height() now describe a newer frame
+     */
+    boolean acquire(){
+        if((state.get() & FRESH) == 0) return false;
+        front = state.getAndSet(front) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * reader: pixels of the frame taken with acquire()
+     * @return
+     */
+    int[] pixels(){
+        return pixels[front];
+    }
+
+    /**
+     * reader: width of the frame taken with acquire()
+     * @return
+     */
+    int width(){
+        return widths[front];
+    }
+
+    /**
+     * reader: height of the frame taken with acquire()
+     * @return
+     */
+    int height(){
+        return heights[front];
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.hirschandmann.image;
+
+import processing.core.PImage;
+
+/**
+ * Where the frames of a sequence are decoded from (a folder of images, a pack file, etc.)
+ * Implementations must allow frames to be loaded from several decode threads at once.
+ */
+interface ISFrameSource {
+
+    /**
+     * returns the number of frames in the sequence
+     * @return
+     */
+    int size();
+
+    /**
+     * returns the width a frame will have once decoded, if it's known without decoding it
+     * @param index - frame index (0 to size-1)
+     * @return width or 0 if unknown
+     */
+    int width(int index);
+
+    /**
+     * returns the height a frame will have once decoded, if it's known without decoding it
+     * @param index - frame index (0 to size-1)
+     * @return height or 0 if unknown
+     */
+    int height(int index);
+
+    /**
+     * decode a frame
+     * @param index - frame index (0 to size-1)
+     * @return the decoded frame or null if it couldn't be loaded
+     */
+    PImage load(int index);
+
+    /**
+     * returns a description of where a frame is loaded from (for error messages)
+     * @param index
+     * @return
+     */
+    String describe(int index);
+
+    /**
+     * returns the memory the source holds for all its frames (e.g. a decoded sprite sheet), counted once per sequence
+     * @return bytes
+     */
+    default long sharedBytes(){
+        return 0;
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.hirschandmann.image;
+
+import processing.core.PImage;
+
+/**
+ * Processing applied to each frame once, as it loads (see ISPlayer.setFrameTransform()),
+ * e.g. a tint, colour key, premultiplied alpha, crop or mask which would otherwise be applied every draw().
+ * Frames are transformed on the decode threads, several at a time: implementations must be thread safe.
+ */
+public interface ISFrameTransform {
+
+    /**
+     * transform a frame which just loaded
+     * @param frame - the decoded frame, its pixels may be modified in place
+     * @param index - frame index in the sequence
+     * @return the transformed frame: the frame itself or a new image (e.g. cropped)
+     */
+    PImage transform(PImage frame, int index);
+
+}
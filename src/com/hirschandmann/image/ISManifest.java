@@ -0,0 +1,273 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import processing.data.JSONArray;
+import processing.data.JSONObject;
+
+/**
+ * Index of the frames in a folder: ordered paths with each frame's dimensions and format.
+ * With manifests enabled (see ISPlayer.setManifest()) the index is written next to the frames on the first scan
+ * (or to the temporary folder if the folder is read only) and reused as long as the folder's modification time matches,
+ * so opening a large folder again skips listing it and players are sized before any frame is decoded.
+ * Frames replaced in place (same file names) don't change the folder's modification time: delete the manifest to rescan.
+ */
+final class ISManifest {
+
+    // manifest file name, in the frames folder
+    static final String FILE_NAME = ".isplayer.json";
+    // manifest format version
+    static final int VERSION = 1;
+
+    // orders file names character by character (frame10.png before frame2.png, pad numbers with zeros), the default
+    static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return a.compareTo(b);
+        }
+    };
+
+    // orders file names by the value of their numbers rather than digit by digit (frame2.png before frame10.png, see ISPlayer.setNaturalOrder())
+    static final Comparator<String> NATURAL_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int i = 0, j = 0;
+            int lengthA = a.length(), lengthB = b.length();
+            while(i < lengthA && j < lengthB){
+                char ca = a.charAt(i);
+                char cb = b.charAt(j);
+                if(Character.isDigit(ca) && Character.isDigit(cb)){
+                    // compare whole numbers: skip leading zeros, then the longer number is larger
+                    int startA = i, startB = j;
+                    while(startA < lengthA && a.charAt(startA) == '0') startA++;
+                    while(startB < lengthB && b.charAt(startB) == '0') startB++;
+                    int endA = startA, endB = startB;
+                    while(endA < lengthA && Character.isDigit(a.charAt(endA))) endA++;
+                    while(endB < lengthB && Character.isDigit(b.charAt(endB))) endB++;
+                    int digits = (endA - startA) - (endB - startB);
+                    if(digits != 0) return digits;
+                    for(int k = 0; k < endA - startA; k++){
+                        int digit = a.charAt(startA + k) - b.charAt(startB + k);
+                        if(digit != 0) return digit;
+                    }
+                    i = endA;
+                    j = endB;
+                }else{
+                    if(ca != cb) return ca - cb;
+                    i++;
+                    j++;
+                }
+            }
+            if(i < lengthA || j < lengthB) return (lengthA - i) - (lengthB - j);
+            // same numbers written differently (frame01 and frame1): fall back to plain order
+            return a.compareTo(b);
+        }
+    };
+
+    // absolute paths of the frames, in playback order
+    final String[] paths;
+    // order of the file names (NAME_ORDER or NATURAL_ORDER)
+    final Comparator<String> order;
+    // frame dimensions (0 if unknown, e.g. formats ImageIO can't read)
+    final int[] widths;
+    final int[] heights;
+
+    private ISManifest(String[] paths, Comparator<String> order, int[] widths, int[] heights){
+        this.paths = paths;
+        this.order = order;
+        this.widths = widths;
+        this.heights = heights;
+    }
+
+    /**
+     * returns the order frames are played in
+     * @param natural - numbers by value (NATURAL_ORDER) rather than digit by digit (NAME_ORDER)
+     * @return
+     */
+    static Comparator<String> order(boolean natural){
+        return natural ? NATURAL_ORDER : NAME_ORDER;
+    }
+
+    /**
+     * list the frames of a folder without reading their dimensions
+     * @param dir
+     * @param order - file name order (NAME_ORDER or NATURAL_ORDER)
+     * @return
+     */
+    static ISManifest scan(File dir, Comparator<String> order){
+        String[] paths = ISPlayer.listFrames(dir, order);
+        return new ISManifest(paths, order, new int[paths.length], new int[paths.length]);
+    }
+
+    /**
+     * read a folder's manifest, or scan the folder (reading each frame's dimensions from its header) and write one
+     * @param dir
+     * @param order - file name order (NAME_ORDER or NATURAL_ORDER)
+     * @return
+     */
+    static ISManifest load(File dir, Comparator<String> order){
+        long modified = dir.lastModified();
+        File local = new File(dir, FILE_NAME);
+        File cached = cacheFile(dir);
+
+        ISManifest manifest = read(local, dir, modified, order);
+        if(manifest == null) manifest = read(cached, dir, modified, order);
+        if(manifest != null) return manifest;
+
+        String[] paths = ISPlayer.listFrames(dir, order);
+        int[] widths = new int[paths.length];
+        int[] heights = new int[paths.length];
+        String[] formats = new String[paths.length];
+        int[] size = new int[2];
+        for(int i = 0; i < paths.length; i++){
+            formats[i] = readHeader(paths[i], size);
+            widths[i] = size[0];
+            heights[i] = size[1];
+        }
+        manifest = new ISManifest(paths, order, widths, heights);
+        if(!manifest.write(local, dir, formats) && !manifest.write(cached, dir, formats)){
+            System.err.println("couldn't write a manifest for " + dir.getAbsolutePath());
+        }
+        return manifest;
+    }
+
+    /**
+     * returns where the manifest of a read only folder is kept
+     * @param dir
+     * @return
+     */
+    private static File cacheFile(File dir){
+        String path = dir.getAbsolutePath();
+        try {
+            path = dir.getCanonicalPath();
+        } catch (IOException e) {
+            // keep the absolute path
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "isplayer-manifests" + File.separator + Integer.toHexString(path.hashCode()) + ".json");
+    }
+
+    /**
+     * read a manifest file if it's still valid for a folder
+     * @param file
+     * @param dir
+     * @param modified - the folder's modification time
+     * @param order - file name order the frames must be listed in
+     * @return the manifest or null if it's missing, unreadable, out of date or lists the frames in another order
+     */
+    private static ISManifest read(File file, File dir, long modified, Comparator<String> order){
+        if(!file.isFile()) return null;
+
+        JSONObject json;
+        try (Reader reader = new FileReader(file)) {
+            json = new JSONObject(reader);
+        } catch (Exception e) {
+            return null;
+        }
+        if(json.getInt("version", 0) != VERSION || json.getLong("modified", -1) != modified) return null;
+        if(!orderName(order).equals(json.getString("order", null))) return null;
+        // manifests in the temporary folder are matched by a hash of the path
+        if(!dir.getAbsolutePath().equals(json.getString("folder", null))) return null;
+
+        String[] paths;
+        int[] widths;
+        int[] heights;
+        // a malformed frame list or an entry without a file name invalidates the manifest: the folder is scanned instead
+        try {
+            JSONArray frames = json.getJSONArray("frames");
+            if(frames == null) return null;
+            int count = frames.size();
+            paths = new String[count];
+            widths = new int[count];
+            heights = new int[count];
+            for(int i = 0; i < count; i++){
+                JSONObject frame = frames.getJSONObject(i);
+                String name = frame.getString("file");
+                if(name == null) return null;
+                paths[i] = new File(dir, name).getAbsolutePath();
+                widths[i] = frame.getInt("width", 0);
+                heights[i] = frame.getInt("height", 0);
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return new ISManifest(paths, order, widths, heights);
+    }
+
+    /**
+     * returns how a file name order is recorded in manifests
+     * @param order
+     * @return
+     */
+    private static String orderName(Comparator<String> order){
+        return order == NATURAL_ORDER ? "natural" : "name";
+    }
+
+    /**
+     * write this manifest for a folder
+     * @param file
+     * @param dir
+     * @param formats - each frame's format
+     * @return true if the manifest was written
+     */
+    private boolean write(File file, File dir, String[] formats){
+        try {
+            File folder = file.getParentFile();
+            if(!folder.isDirectory() && !folder.mkdirs()) return false;
+            // creating the file changes the folder's modification time: create it first, then record the time
+            if(!file.exists() && !file.createNewFile()) return false;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+
+        JSONObject json = new JSONObject();
+        json.setInt("version", VERSION);
+        json.setString("folder", dir.getAbsolutePath());
+        json.setLong("modified", dir.lastModified());
+        json.setString("order", orderName(order));
+        JSONArray frames = new JSONArray();
+        for(int i = 0; i < paths.length; i++){
+            JSONObject frame = new JSONObject();
+            frame.setString("file", new File(paths[i]).getName());
+            frame.setInt("width", widths[i]);
+            frame.setInt("height", heights[i]);
+            frame.setString("format", formats[i]);
+            frames.append(frame);
+        }
+        json.setJSONArray("frames", frames);
+        return file.canWrite() && json.save(file, "compact");
+    }
+
+    /**
+     * read an image's dimensions and format from its header, without decoding it
+     * @param path
+     * @param size - receives the width and height (0 if unknown)
+     * @return the format name (the file extension if ImageIO can't read it)
+     */
+    private static String readHeader(String path, int[] size){
+        size[0] = size[1] = 0;
+        String format = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        ImageReader reader = null;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(path))) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if(readers == null || !readers.hasNext()) return format;
+            reader = readers.next();
+            reader.setInput(input, true, true);
+            size[0] = reader.getWidth(0);
+            size[1] = reader.getHeight(0);
+            return reader.getFormatName().toLowerCase();
+        } catch (Exception e) {
+            size[0] = size[1] = 0;
+            return format;
+        } finally {
+            if(reader != null) reader.dispose();
+        }
+    }
+
+}
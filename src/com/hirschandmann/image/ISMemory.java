@@ -0,0 +1,170 @@
+package com.hirschandmann.image;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget shared by all image sequence players in a sketch (see ISPlayer.setMemoryBudget()).
+ * Sequences count the bytes of their frames in memory here: once the total goes over the budget,
+ * the frames used least recently across all sequences are evicted (idle sequences go first)
+ * until they take LOW_WATER of the budget, so frames are evicted in batches rather than one per decoded frame. Evicted frames are decoded again once a playhead reaches them.
+ * Frames shown by a player, keyframes of delta frames in memory, images passed to ISPlayer.init(PImage[])
+ * (unless transformed) and sprite sheet frames are never evicted: a sprite sheet is counted once, as long as its sequence is open.
+ */
+final class ISMemory {
+
+    /**
+     * a frame which may be evicted and when it was last used
+     */
+    static final class Candidate {
+        final ISSequence sequence;
+        final int index;
+        final long stamp;
+
+        Candidate(ISSequence sequence, int index, long stamp){
+            this.sequence = sequence;
+            this.index = index;
+            this.stamp = stamp;
+        }
+    }
+
+    // least recently used first
+    private static final Comparator<Candidate> OLDEST_FIRST = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return Long.compare(a.stamp, b.stamp);
+        }
+    };
+
+    // evicting brings memory use down to this fraction of the budget: the next frames decoded fit without evicting again
+    private static final double LOW_WATER = 0.9;
+
+    // bytes all sequences' frames may take (0 = unlimited)
+    private static volatile long budget;
+    // bytes taken by all sequences' frames
+    private static final AtomicLong used = new AtomicLong();
+    // frames are stamped with the next value when they're loaded or shown
+    private static final AtomicLong clock = new AtomicLong();
+    // one thread evicts at a time
+    private static final Object lock = new Object();
+    // the frames in use didn't fit the budget last time (reported once until they do)
+    private static volatile boolean overrun;
+    // memory used when evicting last fell short: frames aren't looked at again until use grows past it by the low water margin
+    private static volatile long overrunAt;
+
+    private ISMemory(){}
+
+    /**
+     * change the budget and evict frames right away if it's exceeded
+     * @param bytes - 0 for unlimited
+     */
+    static void setBudget(long bytes){
+        budget = Math.max(0, bytes);
+        overrun = false;
+        reclaim();
+    }
+
+    /**
+     * returns the budget
+     * @return bytes, 0 if unlimited
+     */
+    static long getBudget(){
+        return budget;
+    }
+
+    /**
+     * returns the memory taken by all sequences' frames
+     * @return bytes
+     */
+    static long used(){
+        return used.get();
+    }
+
+    /**
+     * count frames loaded (positive) or released (negative)
+     * @param bytes
+     */
+    static void add(long bytes){
+        if(bytes == 0) return;
+        long total = used.addAndGet(bytes);
+        // frames were released: the ones in use fit again, evict as soon as they don't
+        if(bytes < 0 && overrun && total <= budget) overrun = false;
+    }
+
+    /**
+     * returns a stamp for a frame which was just used, later than all previous ones
+     * @return
+     */
+    static long tick(){
+        return clock.incrementAndGet();
+    }
+
+    /**
+     * returns true if the frames take more memory than the budget
+     * @return
+     */
+    private static boolean isOver(){
+        long limit = budget;
+        return limit > 0 && used.get() > limit;
+    }
+
+    /**
+     * returns how far evicting brings memory use down
+     * @return bytes
+     */
+    private static long lowWater(){
+        return (long)(budget * LOW_WATER);
+    }
+
+    /**
+     * returns true if evicting fell short last time and memory use hasn't grown much since:
+     * looking at every frame again would only find the same frames in use
+     * @return
+     */
+    private static boolean isStalled(){
+        return overrun && used.get() <= overrunAt + (budget - lowWater());
+    }
+
+    /**
+     * evict the frames used least recently, across all sequences, until the frames take LOW_WATER of the budget
+     * (does nothing if they fit the budget). Call without holding any sequence's lock
+     */
+    static void reclaim(){
+        if(!isOver() || isStalled()) return;
+
+        ArrayList<ISPlayer> evicted = null;
+        synchronized (lock) {
+            if(!isOver()){
+                overrun = false;
+                return;
+            }
+            if(isStalled()) return;
+
+            ArrayList<Candidate> candidates = new ArrayList<>();
+            for(ISSequence sequence : ISSequence.openSequences()){
+                sequence.collectEvictable(candidates);
+            }
+            Collections.sort(candidates, OLDEST_FIRST);
+            long target = lowWater();
+            for(Candidate candidate : candidates){
+                if(used.get() <= target) break;
+                // frames used since they were collected are skipped
+                evicted = candidate.sequence.evict(candidate.index, candidate.stamp, evicted);
+            }
+            boolean over = isOver();
+            if(over && !overrun){
+                System.err.println("frames in use take more than the memory budget: " + used.get() + " / " + budget + " bytes");
+            }
+            overrunAt = used.get();
+            overrun = over;
+        }
+        // notify outside of all locks
+        if(evicted != null){
+            for(ISPlayer player : evicted){
+                player.framesEvicted();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.hirschandmann.image;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import processing.core.PImage;
+
+/**
+ * Counters recorded while loading and playing back, cheap enough to leave on:
+ * a few uncontended atomic updates per decoded or presented frame.
+ * Sequences record decoding, players record playback, ISStats takes a snapshot of both.
+ */
+final class ISMetrics {
+
+    /**
+     * number, total and maximum of a series of durations (in nanoseconds)
+     */
+    static final class Durations {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos){
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            if(nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+        }
+
+        void reset(){
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+
+    // decode time histogram buckets: bucket i counts decodes which took 2^i to 2^(i+1) microseconds
+    static final int DECODE_BUCKETS = 24;
+
+    // decoding (sequence)
+    final Durations decodeTimes = new Durations();
+    final AtomicLongArray decodeHistogram = new AtomicLongArray(DECODE_BUCKETS);
+    final AtomicLong framesDecoded = new AtomicLong();
+    final AtomicLong framesFailed = new AtomicLong();
+    final AtomicLong framesEvicted = new AtomicLong();
+    // frames evicted to keep within the memory budget
+    final AtomicLong framesReclaimed = new AtomicLong();
+    // frames which share the image of an identical frame
+    final AtomicLong framesShared = new AtomicLong();
+    // bytes of the frames in memory
+    final AtomicLong frameBytes = new AtomicLong();
+
+    // playback (player)
+    final AtomicLong framesAdvanced = new AtomicLong();
+    // frames skipped to catch up with wall-clock time (DROP_FRAMES)
+    final AtomicLong framesDropped = new AtomicLong();
+    // frames shown after the next one was due (HOLD_FRAMES)
+    final AtomicLong framesLate = new AtomicLong();
+    // time between frames shown by the playback clock
+    final Durations frameIntervals = new Durations();
+    // how late the scheduler thread woke up for an update
+    final Durations oversleeps = new Durations();
+    // time between the sketch's draw() calls
+    final Durations drawIntervals = new Durations();
+    // System.nanoTime() the current sequence was initialised at and how long until its first frame was shown (-1 until then)
+    volatile long initTime;
+    volatile long timeToFirstFrame = -1;
+    // System.nanoTime() of the previous frame shown by the playback clock and of the previous draw() (0 if none)
+    private volatile long lastFrameTime;
+    private volatile long lastDrawTime;
+
+    /**
+     * record how long a frame took to decode
+     * @param nanos
+     */
+    void decoded(long nanos){
+        decodeTimes.record(nanos);
+        long micros = nanos / 1000;
+        int bucket = micros > 1 ? 63 - Long.numberOfLeadingZeros(micros) : 0;
+        decodeHistogram.incrementAndGet(Math.min(bucket, DECODE_BUCKETS - 1));
+    }
+
+    /**
+     * record a frame shown by the playback clock
+     * @param now - System.nanoTime()
+     */
+    void advanced(long now){
+        framesAdvanced.incrementAndGet();
+        long last = lastFrameTime;
+        if(last != 0) frameIntervals.record(now - last);
+        lastFrameTime = now;
+    }
+
+    /**
+     * don't count the time playback was paused as a frame interval
+     */
+    void clockRestarted(){
+        lastFrameTime = 0;
+    }
+
+    /**
+     * record a draw() of the sketch
+     * @param now - System.nanoTime()
+     */
+    void drawn(long now){
+        long last = lastDrawTime;
+        if(last != 0) drawIntervals.record(now - last);
+        lastDrawTime = now;
+    }
+
+    /**
+     * start timing the first frame of a new sequence
+     */
+    void initialised(){
+        initTime = System.nanoTime();
+        timeToFirstFrame = -1;
+    }
+
+    /**
+     * the first frame of the sequence was shown
+     */
+    void firstFrameShown(){
+        if(timeToFirstFrame < 0) timeToFirstFrame = System.nanoTime() - initTime;
+    }
+
+    /**
+     * clear playback counters
+     */
+    void resetPlayback(){
+        framesAdvanced.set(0);
+        framesDropped.set(0);
+        framesLate.set(0);
+        frameIntervals.reset();
+        oversleeps.reset();
+        drawIntervals.reset();
+    }
+
+    /**
+     * returns the memory a frame takes up
+     * @param frame
+     * @return bytes
+     */
+    static long bytes(PImage frame){
+        if(frame instanceof ISEncodedFrame) return ((ISEncodedFrame)frame).bytes();
+        return frame.pixels != null ? frame.pixels.length * 4L : (long)frame.width * frame.height * 4L;
+    }
+
+}
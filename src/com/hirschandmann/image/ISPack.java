@@ -0,0 +1,185 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Image Sequence Pack
+ * packs a folder of images into a single file of pre-decoded (raw or deflated) ARGB frames plus an index,
+ * which ISPlayer memory-maps and loads without decoding any images.
+ * 
+ * From a sketch:
+ * <pre>
+ * ISPack.pack(this, dataPath("frames"), dataPath("frames.isp"));
+ * player = new ISPlayer(this, dataPath("frames.isp"));
+ * </pre>
+ * From the command line:
+ * <pre>
+ * java -cp core.jar:ImageSequencePlayer.jar com.hirschandmann.image.ISPack [-z] folder frames.isp
+ * </pre>
+ * 
+ * File layout (big endian):
+ * header: magic "ISPK", version, width, height, number of frames, flags (all ints)
+ * index: offset (long) and length (int) of each frame's data
+ * data: each frame's pixels as ARGB ints, deflated if the compressed flag is set
+ */
+public final class ISPack implements PConstants {
+    
+    // pack file extension
+    public final static String EXTENSION = "isp";
+    // "ISPK"
+    final static int MAGIC = 0x4953504B;
+    // file format version
+    final static int VERSION = 1;
+    // flag: frame data is deflated
+    final static int FLAG_DEFLATE = 1;
+    // flag: frames have transparent pixels
+    final static int FLAG_ALPHA = 2;
+    // magic, version, width, height, number of frames, flags
+    final static int HEADER_SIZE = 6 * 4;
+    // frame data offset (long) and length (int)
+    final static int INDEX_ENTRY_SIZE = 8 + 4;
+    
+    private ISPack(){}
+    
+    /**
+     * pack the supported images in a folder into a single file of raw ARGB frames
+     * @param sketch - sketch used to decode the images
+     * @param folderPath - folder of images
+     * @param packPath - pack file to write
+     */
+    public static void pack(PApplet sketch, String folderPath, String packPath){
+        pack(sketch, folderPath, packPath, false);
+    }
+    
+    /**
+     * pack the supported images in a folder into a single file of ARGB frames
+     * @param sketch - sketch used to decode the images
+     * @param folderPath - folder of images
+     * @param packPath - pack file to write
+     * @param compress - deflate frames (smaller files, slower loading than raw frames)
+     */
+    public static void pack(PApplet sketch, String folderPath, String packPath, boolean compress){
+        pack(sketch, folderPath, packPath, compress, false);
+    }
+    
+    /**
+     * pack the supported images in a folder into a single file of ARGB frames
+     * @param sketch - sketch used to decode the images
+     * @param folderPath - folder of images
+     * @param packPath - pack file to write
+     * @param compress - deflate frames (smaller files, slower loading than raw frames)
+     * @param naturalOrder - sort file names by the value of their numbers, frame2 before frame10 (see ISPlayer.setNaturalOrder())
+     */
+    public static void pack(PApplet sketch, String folderPath, String packPath, boolean compress, boolean naturalOrder){
+        File dir = new File(folderPath);
+        if(!dir.isDirectory()) {
+        	throw new Error("The location is not valid:\n"+dir.getAbsolutePath()+"\nCheck if the path exists and is a folder/directory.");
+        }
+        String[] paths = ISPlayer.listFrames(dir, ISManifest.order(naturalOrder));
+        int numFrames = paths.length;
+        if(numFrames == 0){
+            throw new Error("no supported images found in:\n" + dir.getAbsolutePath());
+        }
+        
+        int width = 0;
+        int height = 0;
+        int flags = compress ? FLAG_DEFLATE : 0;
+        long[] offsets = new long[numFrames];
+        int[] lengths = new int[numFrames];
+        
+        try (FileChannel channel = FileChannel.open(new File(packPath).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            // frame data goes after the header and index, which are written once all frames are known
+            long offset = HEADER_SIZE + (long)numFrames * INDEX_ENTRY_SIZE;
+            Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            ByteBuffer raw = null;
+            byte[] deflated = null;
+            
+            for(int i = 0; i < numFrames; i++){
+                PImage frame = sketch.loadImage(paths[i]);
+                if(frame == null || frame.width <= 0 || frame.height <= 0){
+                    throw new Error("couldn't load frame: " + paths[i]);
+                }
+                // all frames must have the same dimensions as the first one
+                if(i == 0){
+                    width = frame.width;
+                    height = frame.height;
+                    raw = ByteBuffer.allocate(width * height * 4);
+                }else if(frame.width != width || frame.height != height){
+                    throw new Error("frame " + paths[i] + " is " + frame.width + "x" + frame.height + ", expected " + width + "x" + height);
+                }
+                if(frame.format == ARGB) flags |= FLAG_ALPHA;
+                
+                frame.loadPixels();
+                raw.clear();
+                raw.asIntBuffer().put(frame.pixels);
+                
+                ByteBuffer data = raw;
+                if(deflater != null){
+                    if(deflated == null) deflated = new byte[raw.capacity() + raw.capacity() / 100 + 64];
+                    deflater.reset();
+                    deflater.setInput(raw.array());
+                    deflater.finish();
+                    int length = 0;
+                    while(!deflater.finished()){
+                        if(length == deflated.length) deflated = java.util.Arrays.copyOf(deflated, deflated.length * 2);
+                        length += deflater.deflate(deflated, length, deflated.length - length);
+                    }
+                    data = ByteBuffer.wrap(deflated, 0, length);
+                }
+                
+                offsets[i] = offset;
+                lengths[i] = data.remaining();
+                while(data.hasRemaining()){
+                    offset += channel.write(data, offset);
+                }
+            }
+            if(deflater != null) deflater.end();
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + numFrames * INDEX_ENTRY_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(numFrames).putInt(flags);
+            for(int i = 0; i < numFrames; i++){
+                header.putLong(offsets[i]).putInt(lengths[i]);
+            }
+            header.flip();
+            long position = 0;
+            while(header.hasRemaining()){
+                position += channel.write(header, position);
+            }
+        } catch (IOException e) {
+            throw new Error("couldn't write pack file: " + packPath, e);
+        }
+    }
+    
+    /**
+     * command line packing: [-z] folder file.isp
+     * @param args
+     */
+    public static void main(String[] args){
+        boolean compress = args.length == 3 && args[0].equals("-z");
+        if(args.length != (compress ? 3 : 2)){
+            System.err.println("usage: ISPack [-z] folder file." + EXTENSION);
+            System.err.println("  -z  deflate frames");
+            System.exit(1);
+        }
+        String folderPath = args[compress ? 1 : 0];
+        String packPath = args[compress ? 2 : 1];
+        
+        PApplet sketch = new PApplet();
+        sketch.sketchPath();
+        
+        long start = System.currentTimeMillis();
+        pack(sketch, folderPath, packPath, compress);
+        System.out.println("packed " + folderPath + " into " + packPath + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,217 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Frames loaded from a memory-mapped pack file (see ISPack)
+ */
+final class ISPackSource implements ISFrameSource, PConstants {
+
+    // pack file
+    private final File file;
+    // frame dimensions
+    private final int width;
+    private final int height;
+    // ISPack flags
+    private final int flags;
+    // mappings of the frame data (a single mapping is limited to 2GB)
+    private final MappedByteBuffer[] segments;
+    // per frame: mapping index, offset within the mapping and length of the data
+    private final int[] segmentIndices;
+    private final int[] segmentOffsets;
+    private final int[] lengths;
+    // frames whose index entry points outside of the file or has the wrong size (e.g. a truncated copy)
+    private final BitSet invalidFrames = new BitSet();
+    // downscales frames as they're loaded (null for full size frames)
+    private final ISResampler resampler;
+
+    /**
+     * read the header and index of a pack file and map its frame data
+     * @param file
+     * @param resampler - downscales frames as they're loaded (null for full size frames)
+     * @throws IOException if the file can't be read or isn't a pack file
+     */
+    ISPackSource(File file, ISResampler resampler) throws IOException {
+        this.file = file;
+        this.resampler = resampler;
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(ISPack.HEADER_SIZE);
+            readFully(channel, header, 0);
+            if(header.getInt() != ISPack.MAGIC){
+                throw new IOException("not an image sequence pack file: " + file);
+            }
+            int version = header.getInt();
+            if(version != ISPack.VERSION){
+                throw new IOException("unsupported pack file version " + version + ": " + file);
+            }
+            width = header.getInt();
+            height = header.getInt();
+            int numFrames = header.getInt();
+            flags = header.getInt();
+            long frameSize = (long)width * height * 4;
+            if(width <= 0 || height <= 0 || numFrames < 0 || frameSize > Integer.MAX_VALUE){
+                throw new IOException("invalid pack file header: " + file);
+            }
+            long size = channel.size();
+            long dataStart = ISPack.HEADER_SIZE + (long)numFrames * ISPack.INDEX_ENTRY_SIZE;
+            if(dataStart > size){
+                throw new IOException("truncated pack file index: " + file);
+            }
+            
+            ByteBuffer index = ByteBuffer.allocate(numFrames * ISPack.INDEX_ENTRY_SIZE);
+            readFully(channel, index, ISPack.HEADER_SIZE);
+            
+            long[] offsets = new long[numFrames];
+            lengths = new int[numFrames];
+            segmentIndices = new int[numFrames];
+            segmentOffsets = new int[numFrames];
+            boolean deflated = (flags & ISPack.FLAG_DEFLATE) != 0;
+            long previous = dataStart;
+            for(int i = 0; i < numFrames; i++){
+                long offset = index.getLong();
+                int length = index.getInt();
+                // frame data lies within the file, in ascending order as ISPack writes it, raw frames are exactly one frame of pixels
+                boolean valid = offset >= previous && length >= 0 && offset <= size - length
+                        && (deflated ? length > 0 : length == frameSize);
+                if(!valid){
+                    // fails to load rather than reading past the data
+                    invalidFrames.set(i);
+                    offset = previous;
+                    length = 0;
+                }
+                offsets[i] = offset;
+                lengths[i] = length;
+                previous = offset;
+            }
+            if(!invalidFrames.isEmpty()){
+                System.err.println(invalidFrames.cardinality() + " of " + numFrames + " frames are missing or corrupt in " + file + ", they'll be skipped");
+            }
+            long[] ends = new long[numFrames];
+            for(int i = 0; i < numFrames; i++){
+                ends[i] = offsets[i] + lengths[i];
+            }
+            segments = map(channel, offsets, ends, segmentIndices, segmentOffsets);
+        }
+    }
+
+    public int size() {
+        return lengths.length;
+    }
+
+    public int width(int index) {
+        return resampler != null ? resampler.width(width, height) : width;
+    }
+
+    public int height(int index) {
+        return resampler != null ? resampler.height(width, height) : height;
+    }
+
+    public PImage load(int index) {
+        PImage frame = read(index);
+        return resampler != null && frame != null ? resampler.resample(frame) : frame;
+    }
+
+    /**
+     * copy or inflate a frame's pixels
+     * @param index
+     * @return the full size frame or null if its data is corrupt
+     */
+    private PImage read(int index) {
+        if(invalidFrames.get(index)) return null;
+        PImage frame = new PImage(width, height, (flags & ISPack.FLAG_ALPHA) != 0 ? ARGB : RGB);
+        // each thread reads through its own view of the mapping
+        ByteBuffer data = segments[segmentIndices[index]].duplicate();
+        data.position(segmentOffsets[index]);
+        data.limit(segmentOffsets[index] + lengths[index]);
+        
+        if((flags & ISPack.FLAG_DEFLATE) == 0){
+            data.asIntBuffer().get(frame.pixels);
+            return frame;
+        }
+        
+        byte[] compressed = new byte[lengths[index]];
+        data.get(compressed);
+        ByteBuffer raw = ByteBuffer.allocate(width * height * 4);
+        Inflater inflater = new Inflater();
+        try{
+            inflater.setInput(compressed);
+            while(!inflater.finished() && raw.hasRemaining()){
+                int inflated = inflater.inflate(raw.array(), raw.position(), raw.remaining());
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                raw.position(raw.position() + inflated);
+            }
+        }catch(DataFormatException e){
+            System.err.println("corrupt frame " + index + " in " + file + ": " + e.getLocalizedMessage());
+            return null;
+        }finally{
+            inflater.end();
+        }
+        if(raw.hasRemaining()){
+            System.err.println("corrupt frame " + index + " in " + file + ": " + raw.position() + " of " + raw.capacity() + " bytes");
+            return null;
+        }
+        raw.rewind();
+        raw.asIntBuffer().get(frame.pixels);
+        return frame;
+    }
+
+    public String describe(int index) {
+        return file.getAbsolutePath() + " (frame " + index + ")";
+    }
+
+    /**
+     * map ranges of a file, grouping consecutive ranges into mappings of up to 2GB (a single mapping's limit)
+     * @param channel
+     * @param starts - start offset of each range, in ascending order
+     * @param ends - end offset of each range
+     * @param segmentIndices - receives the mapping index of each range
+     * @param segmentOffsets - receives the offset of each range within its mapping
+     * @return the mappings
+     * @throws IOException
+     */
+    static MappedByteBuffer[] map(FileChannel channel, long[] starts, long[] ends, int[] segmentIndices, int[] segmentOffsets) throws IOException {
+        java.util.ArrayList<MappedByteBuffer> mapped = new java.util.ArrayList<>();
+        int count = starts.length;
+        int first = 0;
+        while(first < count){
+            long start = starts[first];
+            long end = ends[first];
+            int last = first;
+            while(last + 1 < count && Math.max(end, ends[last + 1]) - start <= Integer.MAX_VALUE){
+                last++;
+                end = Math.max(end, ends[last]);
+            }
+            for(int i = first; i <= last; i++){
+                segmentIndices[i] = mapped.size();
+                segmentOffsets[i] = (int)(starts[i] - start);
+            }
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+            first = last + 1;
+        }
+        return mapped.toArray(new MappedByteBuffer[mapped.size()]);
+    }
+
+    /**
+     * read from a channel until the buffer is full
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0) throw new IOException("unexpected end of file");
+        }
+        buffer.flip();
+    }
+
+}
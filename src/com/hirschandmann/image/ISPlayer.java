@@ -1,9 +1,20 @@
 package com.hirschandmann.image;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
 
 import processing.core.PApplet;
 import processing.core.PConstants;
@@ -13,51 +24,178 @@ import processing.data.JSONObject;
 /**
  * Image Sequence Player
  * loads images in separate threads 
- * (use PApplet's requestImageMax to control how many image loading threads can be isStarted simultaneously)
+ * (use ISPlayer.setDecodeThreads() to control how many image loading threads all players share,
+ * frames closest to each playhead are decoded first).
+ * Players of the same folder, pack file or array of images share one set of frames, decoded once
  */
-public class ISPlayer extends PImage implements PConstants,Runnable {
+public class ISPlayer extends PImage implements PConstants, ISPlayerMXBean {
     
 	// look up table of supported image formats
 	private static HashMap<String,Boolean> formats;
 	// parent sketch
 	private PApplet parent;
-	// thread
-    private Thread playbackThread;
     // internal flag to resize this PImage instance based on the first loaded frame 
-    private boolean resized;
+    private volatile boolean resized;
     // playback flag
-    private boolean isPlaying;
+    private volatile boolean isPlaying;
     // looping flag
-    private boolean isLooping;
+    private volatile boolean isLooping;
+    // playback speed relative to the frame rate (fractional, negative in reverse)
+    private volatile float rate = 1;
+    // ping-pong flag: turn around at the ends of the sequence instead of wrapping around
+    private volatile boolean pingPong;
+    // ping-pong only: the playhead is on its way back to where playback started
+    private volatile boolean bouncing;
+    // progress towards the next frame (0 to 1) when the rate isn't a whole number
+    private volatile double fraction;
+    // evicted frames (see setMemoryBudget()) under and this many landings ahead of the playhead are decoded again as it moves
+    private static final int RELOAD_AHEAD = 8;
+    // how often advance() checks on images passed to init(PImage[]) or the next queued sequence while waiting for a frame (milliseconds)
+    private static final long AWAIT_INTERVAL = 10;
     // total number of farmes
-    private int numFrames;
-    // total number of pixels
-    private int numPixels;
+    private volatile int numFrames;
     // current frame index (0 to length-1 )
-    private int currentFrame;
-    // loaded PImage frames
-    private PImage[] frames;
-    // default playback rate (~30fps)
-    private int delay = (int)(1000/30.0);//!rounded down
+    private volatile int currentFrame;
+    // frames shared with the other players of the same sequence
+    private volatile ISSequence sequence;
+    // frames this player pinned in the sequence
+    private volatile ISSequence.Window window;
+    // serialises playhead changes (jump/stop/advance) between the scheduler and the sketch
+    private final Object playhead = new Object();
+    // hands frames over from the thread moving the playhead to the animation thread
+    private final ISFrameBuffer frameBuffer = new ISFrameBuffer();
+    // presenting flag, so only one thread takes frames from the frame buffer at a time
+    private final AtomicBoolean presenting = new AtomicBoolean();
+    // sketch animation thread (known once pre() was called)
+    private volatile Thread animationThread;
+    // default playback rate (30fps), as the duration of a frame in nanoseconds
+    private volatile long frameDuration = Math.round(1e9 / 30.0);
+    // what to do when frames are late: drop them to catch up or show them and slip
+    private volatile int latePolicy = DROP_FRAMES;
+    // System.nanoTime() the playback clock counts frames from
+    private long clockStart;
+    // number of frame durations the playhead has advanced since the clock started
+    private long clockSteps;
+    // clock restart request (play/resume, frame rate change) and the time it was requested at
+    private volatile boolean clockRestarted;
+    private volatile long clockRestartTime;
     // finished showing last frame flag
-    private boolean finishedPlaying;
+    private volatile boolean finishedPlaying;
+    // playback stopped at the end of the sequence (not looping): the last frame stays on screen until play() or loop() start over
+    private volatile boolean stoppedAtEnd;
+    // rewind flag: stop() at the end of the sequence, as before playback stayed on the last frame
+    private volatile boolean rewindAtEnd;
     // first frame loaded flag
     private boolean firstFrameLoaded;
     // sequence still loading flag
-    private boolean loading;
-    // current load progress
-    private float loadProgress;
-    
-    // main sketch callbacks
-    private Method onFirstFrameLoadedMethod;
-    private Method onSequenceLoadedMethod;
-    private Method onSequencePlayedMethod;
+    private volatile boolean loading;
+    // streaming flag: only keep a window of decoded frames around the playhead
+    private volatile boolean streaming;
+    // number of frames to keep decoded ahead of the playhead when streaming
+    private int framesAhead = 60;
+    // number of frames to keep decoded behind the playhead when streaming
+    private int framesBehind = 10;
+    // frames to pin in the sequence: all of them or the streaming window (reused every update)
+    private BitSet windowFrames = new BitSet();
+    // playhead, looping flag, direction and stride the window was last placed for
+    private int windowFrame = -1;
+    private boolean windowLooping;
+    private boolean windowPingPong;
+    private int windowDirection;
+    private double windowStride;
+    // copy flag: copy each frame into this image's own pixels instead of presenting the frame's pixels directly
+    private volatile boolean copyPixels;
+    // frame published last (guarded by the playhead lock): identical frames share it, they don't need publishing again,
+    // a frame under the playhead which differs from it is shown once loaded
+    private PImage publishedFrame;
+    
+    /**
+     * a sequence queued to play after the current one (see queue())
+     */
+    private static final class Queued {
+        final File location;
+        final String name;
+        // streaming or all frames, as the player was when it was queued
+        final boolean streaming;
+        // pins the pre-rolled frames
+        final ISSequence.Window window;
+        // null until opened in the background
+        volatile ISSequence sequence;
+        // couldn't be opened
+        volatile boolean failed;
+        // pre-roll started (guarded by the playlist lock)
+        boolean started;
+        // removed from the queue before it was opened (guarded by this)
+        boolean cancelled;
+
+        Queued(File location, String name, boolean streaming, ISSequence.Window window){
+            this.location = location;
+            this.name = name;
+            this.streaming = streaming;
+            this.window = window;
+        }
+    }
+    
+    // sequences to play next, in order: the first one is pre-rolled in the background
+    private final ArrayList<Queued> playlist = new ArrayList<>();
+    // number of frames decoded ahead of switching to a queued sequence
+    private volatile int preroll = 30;
+    // switch to the next queued sequence as soon as it's pre-rolled
+    private volatile boolean cued;
+    // the current sequence ended: hold its last frame until the next queued sequence is pre-rolled
+    private volatile boolean holding;
+    // compact flag: store decoded frames as palette indices or packed RGB when possible
+    private volatile boolean compactFrames;
+    // store frames as tile deltas of a keyframe every this many frames (0 = off), for sequences loaded from now on
+    private volatile int keyframeInterval;
+    // downscale frames as they're decoded by this factor or to fit this size (0x0 = scale by factor), for sequences loaded from now on
+    private volatile float decodeScale = 1;
+    private volatile int decodeWidth;
+    private volatile int decodeHeight;
+    // list folders from a manifest written on the first scan, for sequences loaded from now on
+    private volatile boolean useManifest;
+    // sort file names by the value of their numbers (frame2 before frame10), for sequences loaded from now on
+    private volatile boolean naturalOrder;
+    // append frames written to folders loaded from now on
+    private volatile boolean watching;
+    // offline flag: the playhead only moves on advance(), not with wall-clock time
+    private volatile boolean offline;
+    // applied to each frame of sequences loaded from now on, as it loads (null for none)
+    private volatile ISFrameTransform frameTransform;
+    // sequence loaded event already dispatched flag (streaming re-buffers as the window moves)
+    private boolean sequenceLoadedDispatched;
+    // playback metrics
+    private final ISMetrics metrics = new ISMetrics();
+    // System.nanoTime() the scheduler was asked to update this player at last
+    private long deadline;
+    // JMX name this player is registered with (null if not registered)
+    private ObjectName mbeanName;
+    // metrics of a player without a sequence
+    private static final ISMetrics noMetrics = new ISMetrics();
+    
+    // events, also indices into the callbacks
+    private static final int FIRST_FRAME_LOADED = 0;
+    private static final int SEQUENCE_LOADED = 1;
+    private static final int SEQUENCE_PLAYED = 2;
+    private static final int FRAMES_EVICTED = 3;
+    // names of the sketch methods handling each event
+    private static final String[] CALLBACK_NAMES = {"firstFrameLoaded", "onSequenceLoaded", "onSequencePlayed", "onFramesEvicted"};
+    // main sketch callbacks, resolved once and bound to the sketch (null if not defined, or the sketch is a listener)
+    private final MethodHandle[] callbacks = new MethodHandle[CALLBACK_NAMES.length];
+    // listeners added with addListener() (and the sketch, if it's a listener)
+    private final CopyOnWriteArrayList<ISPlayerListener> listeners = new CopyOnWriteArrayList<>();
+    // events waiting to be dispatched on the animation thread, in the order they happened
+    private final ConcurrentLinkedQueue<Integer> events = new ConcurrentLinkedQueue<>();
+    // dispatching flag, so handlers aren't called from two threads at once
+    private final AtomicBoolean dispatching = new AtomicBoolean();
     // animation name (typically loaded image sequence folder name)
     private String name;
-    // thread running flag
-    private boolean isThreadRunning;
     // pretty-print library version
     public final static String VERSION = "##library.prettyVersion##";
+    // late frames policy: skip late frames to stay in sync with wall-clock time
+    public final static int DROP_FRAMES = 0;
+    // late frames policy: show every frame and let playback slip behind wall-clock time
+    public final static int HOLD_FRAMES = 1;
     
     /**
      * instantiate empty image sequence player 
@@ -69,9 +207,17 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
         
         setupFormatsLUT();
         
-        this.onFirstFrameLoadedMethod = findCallback("firstFrameLoaded",ISPlayer.class);
-        this.onSequenceLoadedMethod = findCallback("onSequenceLoaded",ISPlayer.class);
-        this.onSequencePlayedMethod = findCallback("onSequencePlayed",ISPlayer.class);
+        // sketches implementing the listener interface are called directly, otherwise look up the methods they define
+        if(sketch instanceof ISPlayerListener){
+            listeners.add((ISPlayerListener)sketch);
+        }else if(sketch != null){
+            for(int i = 0; i < CALLBACK_NAMES.length; i++){
+                callbacks[i] = findCallback(CALLBACK_NAMES[i],ISPlayer.class);
+            }
+        }
+        // present new frames and dispatch events on the animation thread, before draw()
+        // (without a sketch, events are dispatched on the threads they happen on)
+        if(sketch != null) sketch.registerMethod("pre", this);
     }
 
     /**
@@ -87,7 +233,7 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
     /**
      * setup look-up table of supported formats
      */
-    private void setupFormatsLUT(){
+    private static synchronized void setupFormatsLUT(){
     	if(ISPlayer.formats == null){
     		ISPlayer.formats = new HashMap<String,Boolean>();
     		
@@ -101,19 +247,332 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
     }
     
     /**
-     * Initialise an existing player with a different folder path 
+     * instantiate image sequence player and stream supported images from folder,
+     * keeping only a window of decoded frames around the playhead in memory
+     * @param sketch
+     * @param folderPath
+     * @param framesAhead - number of frames to decode ahead of the playhead
+     * @param framesBehind - number of frames to keep behind the playhead
+     */
+    public ISPlayer(PApplet sketch,String folderPath,int framesAhead,int framesBehind){
+        this(sketch);
+        init(folderPath,framesAhead,framesBehind);
+    }
+    
+    /**
+     * Initialise an existing player with a different folder path
+     * (or the path to a pack file created with ISPack,
+     * or to the JSON descriptor of a sprite sheet exported by TexturePacker or Aseprite,
+     * or to a zip or uncompressed tar archive of images)
      * @param folderPath
      */
     public void init(String folderPath){
+        streaming = false;
+        load(folderPath);
+    }
+    
+    /**
+     * Initialise an existing player with a different folder path in streaming mode:
+     * frames are decoded ahead of the playhead and evicted once they fall behind it,
+     * so memory use stays bounded regardless of the sequence length
+     * @param folderPath
+     * @param framesAhead - number of frames to decode ahead of the playhead
+     * @param framesBehind - number of frames to keep behind the playhead
+     */
+    public void init(String folderPath,int framesAhead,int framesBehind){
+        streaming = true;
+        this.framesAhead = Math.max(1, framesAhead);
+        this.framesBehind = Math.max(0, framesBehind);
+        load(folderPath);
+    }
+    
+    /**
+     * scan folder for supported images (or open a pack file, sprite sheet or archive) and start loading them (all at once or streamed).
+     * Players of the same folder share its frames: it's only decoded once
+     * @param folderPath
+     */
+    private void load(String folderPath){
+    	File dir = location(folderPath);
+        ISSequence.Window window = new ISSequence.Window(this);
+        ISSequence sequence;
+        try {
+            sequence = open(dir, window);
+        } catch (IOException e) {
+            throw new Error("The location is not valid:\n"+dir.getAbsolutePath()+"\n"+e.getLocalizedMessage());
+        }
+        attach(sequence, window, nameOf(dir));
+    }
+    
+    /**
+     * check a sequence's location exists
+     * @param folderPath
+     * @return
+     */
+    private static File location(String folderPath){
     	File dir = new File(folderPath);
     	
         if(!dir.exists()) {
         	throw new Error("The location is not valid:\n"+dir.getAbsolutePath()+"\nCheck if the path exists and is a folder/directory.");
         }
-        // remove previous frames (if any)
-        clean();
-        // auto rename based on folder name
-        name = dir.getName();
+        return dir;
+    }
+    
+    /**
+     * attach a window to the sequence at a location, with this player's storage options
+     * @param dir - a folder, or a file: pre-decoded frames packed with ISPack, a sprite sheet or an archive
+     * @param window
+     * @return
+     * @throws IOException if the pack file, sprite sheet descriptor or archive can't be read
+     */
+    private ISSequence open(File dir, ISSequence.Window window) throws IOException {
+        return ISSequence.open(parent, dir, compactFrames, keyframeInterval, ISResampler.of(decodeScale, decodeWidth, decodeHeight), useManifest, naturalOrder, watching, frameTransform, window);
+    }
+    
+    /**
+     * auto rename based on folder (or pack file / sprite sheet descriptor / archive) name
+     * @param dir
+     * @return
+     */
+    private static String nameOf(File dir){
+        String name = dir.getName();
+        if(dir.isFile() && name.endsWith("." + ISPack.EXTENSION)){
+            name = name.substring(0, name.length() - ISPack.EXTENSION.length() - 1);
+        }else if(dir.isFile() && (name.toLowerCase().endsWith("." + ISAtlasSource.EXTENSION) || ISArchiveSource.isArchive(dir))){
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        return name;
+    }
+    
+    /**
+     * play a sequence (folder, pack file, sprite sheet or archive) after the current one, and the ones queued before it,
+     * with this player's current options. The next queued sequence is opened and its first frames decoded in the background
+     * (see setPreroll()) while the current one plays: the player switches over without a gap when the current sequence ends
+     * (instead of looping or stopping, holding its last frame if the next one isn't ready yet) or on cue()
+     * @param folderPath
+     */
+    public void queue(String folderPath){
+        File dir = location(folderPath);
+        Queued queued = new Queued(dir, nameOf(dir), streaming, new ISSequence.Window(this));
+        synchronized (playlist) {
+            playlist.add(queued);
+        }
+        prerollNext();
+    }
+    
+    /**
+     * switch to the next queued sequence as soon as it's pre-rolled, without waiting for the current one to end
+     * (does nothing if no sequence is queued)
+     */
+    public void cue(){
+        synchronized (playlist) {
+            if(playlist.isEmpty()) return;
+        }
+        cued = true;
+        // swap right away if it's ready
+        ISScheduler.reschedule(this);
+    }
+    
+    /**
+     * remove the queued sequences (and release the pre-rolled frames, unless other players show them)
+     */
+    public void clearQueue(){
+        ArrayList<Queued> removed;
+        synchronized (playlist) {
+            removed = new ArrayList<>(playlist);
+            playlist.clear();
+            cued = false;
+            holding = false;
+        }
+        for(Queued queued : removed){
+            cancel(queued);
+        }
+    }
+    
+    /**
+     * returns the number of sequences queued to play after the current one
+     * @return
+     */
+    public int getQueueLength(){
+        synchronized (playlist) {
+            return playlist.size();
+        }
+    }
+    
+    /**
+     * change how many frames of the next queued sequence are decoded before switching to it
+     * (the player doesn't wait for more than its streaming window), 30 by default
+     * @param frames - at least 1
+     */
+    public void setPreroll(int frames){
+        preroll = Math.max(1, frames);
+    }
+    
+    /**
+     * returns how many frames of the next queued sequence are decoded before switching to it
+     * @return
+     */
+    public int getPreroll(){
+        return preroll;
+    }
+    
+    /**
+     * open the next queued sequence and pin its first frames, on a thread of its own (listing folders may take a while),
+     * unless that has started already
+     */
+    private void prerollNext(){
+        final Queued next;
+        synchronized (playlist) {
+            if(playlist.isEmpty()) return;
+            next = playlist.get(0);
+            if(next.started) return;
+            next.started = true;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                preroll(next);
+            }
+        });
+        thread.setName("[ISPlayer - preroll]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * pre-roll thread: open a queued sequence and pin the frames the player starts with
+     * @param queued
+     */
+    private void preroll(Queued queued){
+        ISSequence.Window window = queued.window;
+        // decode from the start while the sequence opens
+        window.cueFrame = 0;
+        ISSequence sequence;
+        try {
+            sequence = open(queued.location, window);
+        } catch (IOException e) {
+            System.err.println("couldn't queue " + queued.location.getAbsolutePath() + ": " + e.getLocalizedMessage());
+            queued.failed = true;
+            return;
+        }
+        int numFrames = sequence.numFrames;
+        int start = rate < 0 ? Math.max(0, numFrames - 1) : 0;
+        window.cueFrame = start;
+        int frames = Math.min(preroll, numFrames);
+        if(queued.streaming) frames = Math.min(frames, framesAhead + 1);
+        BitSet pinned = new BitSet();
+        int direction = rate < 0 ? -1 : 1;
+        for(int i = 0; i < frames; i++){
+            int index = start + direction * i;
+            if(index < 0 || index >= numFrames) break;
+            pinned.set(index);
+        }
+        boolean cancelled;
+        synchronized (queued) {
+            cancelled = queued.cancelled;
+            if(!cancelled){
+                sequence.pin(window, pinned);
+                queued.sequence = sequence;
+            }
+        }
+        if(cancelled){
+            sequence.detach(window);
+            return;
+        }
+        ISDecoder.request(sequence);
+    }
+    
+    /**
+     * release a queued sequence's pre-rolled frames (once it's opened, if it's being opened)
+     * @param queued
+     */
+    private static void cancel(Queued queued){
+        ISSequence sequence;
+        synchronized (queued) {
+            queued.cancelled = true;
+            sequence = queued.sequence;
+        }
+        if(sequence != null){
+            sequence.detach(queued.window);
+        }
+    }
+    
+    /**
+     * switch to the next queued sequence if it's pre-rolled: its first frame is shown right away
+     * and the previous sequence is released (unless other players show it)
+     * @return true if the player switched
+     */
+    private boolean playNext(){
+        Queued next;
+        synchronized (playlist) {
+            // skip the sequences which couldn't be opened
+            while(!playlist.isEmpty() && playlist.get(0).failed){
+                playlist.remove(0);
+            }
+            if(playlist.isEmpty()){
+                cued = false;
+                holding = false;
+                return false;
+            }
+            next = playlist.get(0);
+            ISSequence sequence = next.sequence;
+            if(sequence == null || !sequence.isPrerolled(next.window)){
+                if(sequence != null) ISDecoder.request(sequence);
+                // the next one may have been left waiting by a failed one
+                if(!next.started) prerollNext();
+                return false;
+            }
+            playlist.remove(0);
+        }
+        ISSequence sequence = next.sequence;
+        ISSequence previous;
+        ISSequence.Window previousWindow;
+        synchronized (playhead) {
+            synchronized (this) {
+                previous = this.sequence;
+                previousWindow = this.window;
+                this.sequence = sequence;
+                this.window = next.window;
+                this.name = next.name;
+                streaming = next.streaming;
+                numFrames = sequence.numFrames;
+                windowFrame = -1;
+                loading = true;
+                firstFrameLoaded = false;
+                sequenceLoadedDispatched = false;
+                currentFrame = next.window.cueFrame;
+                bouncing = false;
+                stoppedAtEnd = false;
+                fraction = 0;
+                finishedPlaying = false;
+                cued = false;
+                holding = false;
+                // decoding is prioritised around the playhead from now on
+                next.window.cueFrame = -1;
+                if(!streaming){
+                    windowFrames.clear();
+                    windowFrames.set(0, numFrames);
+                    sequence.pin(next.window, windowFrames);
+                }
+            }
+            // show its first frame (and move the streaming window over it)
+            jumpTo(currentFrame);
+        }
+        if(previous != null){
+            previous.detach(previousWindow);
+        }
+        ISDecoder.request(sequence);
+        loadProgressed();
+        prerollNext();
+        return true;
+    }
+    
+    /**
+     * list the supported images in a folder, sorted by filename
+     * @param dir
+     * @param order - ISManifest.NAME_ORDER, or ISManifest.NATURAL_ORDER for numbers by value (frame2 before frame10)
+     * @return absolute paths
+     */
+    static String[] listFrames(File dir, java.util.Comparator<String> order){
+        setupFormatsLUT();
         
         File[] files = dir.listFiles();
         ArrayList<String> paths = new ArrayList<>();
@@ -122,6 +581,8 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
         // for each file
         for (File file : files) {
             String name = file.getName();
+            // the folder's own index (see setManifest())
+            if(name.equals(ISManifest.FILE_NAME)) continue;
             int dotIndex = name.lastIndexOf(".");
             // ignore anything with extensions larger than 4 characters
             if(dotIndex < name.length() - 4){
@@ -137,186 +598,528 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
             
         }
         // sort by filename
-        java.util.Collections.sort(paths);
-        numFrames = paths.size();
-        frames = new PImage[numFrames];
-        // load images async
-        for(int i = 0 ; i < numFrames; i++){
-            frames[i] = parent.requestImage(paths.get(i));
-        }
-        
-        loading = true;
-        firstFrameLoaded = false;
-        // start thread
-        restartThread();
+        java.util.Collections.sort(paths, order);
+        return paths.toArray(new String[paths.size()]);
+    }
+    
+    /**
+     * returns true if a file name has the extension of a supported image format
+     * @param name
+     * @return
+     */
+    static boolean isFrameFile(String name){
+        setupFormatsLUT();
+        int dotIndex = name.lastIndexOf(".");
+        return dotIndex >= 0 && ISPlayer.formats.containsKey(name.substring(dotIndex + 1));
     }
     
     /**
      * Initialize from a pre-loaded list of images
+     * (players initialised with the same array and frame transform share its frames).
+     * With a frame transform, the images are left untouched: transformed copies are played
      * 
      * @param images - the list of images 
      * @param name - the name of the animation
      */
     public void init(PImage[] images, String name){
-        clean();
+        ISSequence.Window window = new ISSequence.Window(this);
+        ISSequence sequence = ISSequence.wrap(images, frameTransform, window);
+        streaming = false;
+        attach(sequence, window, name);
+    }
+    
+    /**
+     * switch to a sequence this player's window was just attached to:
+     * release the previous sequence, pin the frames to load and start updating
+     * @param sequence
+     * @param window
+     * @param name
+     */
+    private void attach(ISSequence sequence, ISSequence.Window window, String name){
         stop();
-        
-        this.name = name;
-        frames = images.clone();
-        numFrames = images.length;
-
-        restartThread();
-        
-        loading = true;
-        firstFrameLoaded = false;
+        synchronized (playhead) {
+            publishedFrame = null;
+        }
+        ISSequence previous;
+        ISSequence.Window previousWindow;
+        synchronized (this) {
+            previous = this.sequence;
+            previousWindow = this.window;
+            this.sequence = sequence;
+            this.window = window;
+            this.name = name;
+            numFrames = sequence.numFrames;
+            windowFrame = -1;
+            metrics.resetPlayback();
+            metrics.initialised();
+            loading = true;
+            firstFrameLoaded = false;
+            sequenceLoadedDispatched = false;
+            // show (and size to) the first frame of the new sequence as soon as it loads
+            resized = false;
+        }
+        // playing in reverse starts from the last frame of the new sequence
+        if(rate < 0){
+            stop();
+        }
+        // release the previous frames (unless other players show them)
+        if(previous != null){
+            previous.detach(previousWindow);
+        }
+        // size to the first frame right away if its dimensions are known before decoding it
+        sizeTo(sequence.frameWidth(0), sequence.frameHeight(0));
+        // load images async: either everything or just the window around the playhead
+        if(streaming){
+            updateWindow();
+        }else{
+            synchronized (this) {
+                windowFrames.clear();
+                windowFrames.set(0, numFrames);
+                sequence.pin(window, windowFrames);
+            }
+            ISDecoder.request(sequence);
+            // frames other players already loaded count right away
+            loadProgressed();
+        }
+        // start updating
+        register();
     }
     
-    private void restartThread(){
-    	//check if already running and stop first
-        if(playbackThread != null){
-        	playbackThread.interrupt();
-        	playbackThread = null;
+    /**
+     * (re)start updating this player on the scheduler thread shared by all players
+     */
+    private void register(){
+        // offline players are stepped by the sketch
+        if(offline) return;
+        ISScheduler.register(this);
+        ISScheduler.reschedule(this);
+    }
+    
+    /**
+     * called by the sequence after frames loaded: update the loading state
+     * and show the frame under the playhead if it's one of them
+     */
+    void framesLoaded(){
+        loadProgressed();
+        showLoadedFrame();
+    }
+    
+    /**
+     * show the frame under the playhead if it loaded since the playhead reached it
+     * (seeking or scrubbing ahead of decoding, evicted frames): until then the previous frame stays on screen
+     */
+    private void showLoadedFrame(){
+        synchronized (playhead) {
+            ISSequence sequence = this.sequence;
+            int index = currentFrame;
+            PImage frame = sequence != null ? sequence.frame(index) : null;
+            if(frame != null && frame != publishedFrame && frame.width > 0 && frame.height > 0){
+                jumpTo(index);
+            }
         }
-        // (re)start thread
-        isThreadRunning = true;
-        playbackThread = new Thread(this);
-        playbackThread.setName("[ISPlayer - " + name + "]");
-        playbackThread.start();
     }
     
     /**
-     * check if all frames have fully loaded and dispatch events depending on the state
+     * called after the frames to load changed or loaded:
+     * update the loading flag and dispatch events depending on the state
      */
-    private void checkLoaded(){
-    	
-        int numFramesLoaded = 0;
-        // for each frame
-        for(int i = 0; i < numFrames; i++){
-        	
-        	// if there is a frame to check
-            if(frames[i] != null){
-            	
-              // frames[i].isLoaded() sometimes returns true even before the image has fully initialized, using dimensions instead
-              if(frames[i].width > 0 && frames[i].height > 0) {
-                    numFramesLoaded++;
-                    // dispatch first frame loaded if callback is defined
-                    if(!firstFrameLoaded && i == 0){
-                        firstFrameLoaded = true;
-                        
-                        if (onFirstFrameLoadedMethod != null) {
-                			// try to call main sketch
-                			try {
-                				onFirstFrameLoadedMethod.invoke(parent, this);
-                			}catch (Exception e) {
-                				System.err.println("Error, disabling firstFrameLoaded()");
-                				System.err.println(e.getLocalizedMessage());
-                				onFirstFrameLoadedMethod = null;
-                			}
-                		}
+    void loadProgressed(){
+        boolean dispatchFirstFrame = false;
+        boolean dispatchSequence = false;
+        synchronized (this) {
+            ISSequence.Window window = this.window;
+            if(window == null) return;
+            int toLoad = window.toLoad;
+            // have all frames fully loaded ? yes or no (frames evicted to keep within the memory budget are reloaded when needed,
+            // frames which couldn't be loaded won't ever be)
+            loading = window.loaded + window.evicted + window.failed < toLoad;
+            if(!firstFrameLoaded && sequence.isFrameLoaded(0)){
+                firstFrameLoaded = true;
+                dispatchFirstFrame = true;
+            }
+            // only once: when streaming loading resumes each time the window moves
+            if(!loading && !sequenceLoadedDispatched && toLoad > 0){
+                sequenceLoadedDispatched = true;
+                dispatchSequence = true;
+            }
+        }
+        // notify the sketch before its next draw()
+        if(dispatchFirstFrame){
+            events.add(FIRST_FRAME_LOADED);
+        }
+        if(dispatchSequence){
+            events.add(SEQUENCE_LOADED);
+        }
+    }
+    
+    /**
+     * called by the memory budget after some of this player's frames were evicted (see setMemoryBudget()):
+     * queue onFramesEvicted
+     */
+    void framesEvicted(){
+        events.add(FRAMES_EVICTED);
+    }
+    
+    /**
+     * dispatch the queued events to the listeners and the sketch's callbacks, on the animation thread
+     */
+    private void dispatchEvents(){
+        // already dispatching (on another thread, or a handler called back): the events are picked up there
+        if(!dispatching.compareAndSet(false, true)) return;
+        try{
+            dispatchQueued();
+        }finally{
+            dispatching.set(false);
+        }
+    }
+    
+    /**
+     * returns true if the sketch calls pre() before each draw(), so events are dispatched there
+     * (false for noLoop() sketches, or without a sketch)
+     * @return
+     */
+    private boolean isSketchLooping(){
+        return parent != null && parent.isLooping();
+    }
+    
+    /**
+     * call the handlers of the queued events, while holding the dispatching flag
+     */
+    private void dispatchQueued(){
+        Integer event;
+        while((event = events.poll()) != null){
+            int type = event;
+            for(ISPlayerListener listener : listeners){
+                try {
+                    switch(type){
+                        case FIRST_FRAME_LOADED: listener.firstFrameLoaded(this); break;
+                        case SEQUENCE_LOADED: listener.onSequenceLoaded(this); break;
+                        case SEQUENCE_PLAYED: listener.onSequencePlayed(this); break;
+                        default: listener.onFramesEvicted(this); break;
                     }
-              	}
+                }catch (RuntimeException e) {
+                    System.err.println("Error in " + CALLBACK_NAMES[type] + "()");
+                    e.printStackTrace();
+                }
+            }
+            MethodHandle callback = callbacks[type];
+            if(callback != null){
+                // try to call main sketch
+                try {
+                    callback.invokeExact(this);
+                }catch (Throwable e) {
+                    System.err.println("Error, disabling " + CALLBACK_NAMES[type] + "()");
+                    System.err.println(e.getLocalizedMessage());
+                    callbacks[type] = null;
+                }
             }
         }
-        // have all frames fully loaded ? yes or no
-        loading = (numFramesLoaded != numFrames);
-        // how much have they loaded ?
-        loadProgress = (float)numFramesLoaded / numFrames;
-        // if loading is complete and there's a callback, notify parent sketch
-        if(!loading && onSequenceLoadedMethod != null){
-        	
-        	// try to call main sketch
-			try {
-				onSequenceLoadedMethod.invoke(parent, this);
-			}catch (Exception e) {
-				System.err.println("Error, disabling onSequenceLoaded()");
-				System.err.println(e.getLocalizedMessage());
-				onSequenceLoadedMethod = null;
-			}
-			
+    }
+    
+    /**
+     * receive this player's events, on the sketch's animation thread before draw()
+     * (a sketch implementing ISPlayerListener receives them without being added)
+     * @param listener
+     */
+    public void addListener(ISPlayerListener listener){
+        if(listener != null) listeners.addIfAbsent(listener);
+    }
+    
+    /**
+     * stop receiving this player's events
+     * @param listener
+     */
+    public void removeListener(ISPlayerListener listener){
+        listeners.remove(listener);
+    }
+    
+    /**
+     * called by the sequence after frames were appended to it (see setWatching()):
+     * pin the new frames (or move the streaming window over them) and update the loading state
+     * @param sequence - the sequence which grew
+     */
+    void framesAppended(ISSequence sequence){
+        synchronized (this) {
+            // the player may have moved on to another sequence since
+            if(sequence != this.sequence) return;
+            numFrames = sequence.numFrames;
+            // place the window again even if the playhead hasn't moved
+            windowFrame = -1;
+            if(!streaming){
+                windowFrames.clear();
+                windowFrames.set(0, numFrames);
+                sequence.pin(window, windowFrames);
+            }
+        }
+        if(streaming){
+            updateWindow();
+        }else{
+            ISDecoder.request(sequence);
+            loadProgressed();
+        }
+    }
+    
+    /**
+     * streaming only: move the window around the playhead and wake the decode threads if needed
+     */
+    private void updateWindow(){
+        // notify outside of this player's lock
+        ISSequence sequence = moveWindow();
+        if(sequence != null){
+            ISDecoder.request(sequence);
+            loadProgressed();
         }
+    }
+    
+    /**
+     * streaming only: pin the frames in the window around the playhead
+     * (the sequence decodes the ones which aren't loaded yet)
+     * and unpin the ones which fell outside of it
+     * @return the sequence if the window moved, otherwise null
+     */
+    private synchronized ISSequence moveWindow(){
+        ISSequence sequence = this.sequence;
+        if(!streaming || sequence == null || numFrames == 0) return null;
+        // frames the playhead lands on: every frame up to normal speed, every nth one when fast forwarding or rewinding
+        int direction = direction();
+        double stride = Math.max(1, Math.abs(rate));
+        // nothing to do if the playhead hasn't moved
+        if(currentFrame == windowFrame && isLooping == windowLooping && pingPong == windowPingPong
+                && direction == windowDirection && stride == windowStride) return null;
+        windowFrame = currentFrame;
+        windowLooping = isLooping;
+        windowPingPong = pingPong;
+        windowDirection = direction;
+        windowStride = stride;
         
+        windowFrames.clear();
+        // the window runs ahead in the direction of playback (the frames skipped at high rates aren't decoded),
+        // it wraps around the ends of the sequence when looping or folds back at them when playing ping-pong
+        double offset = stride > 1 ? fraction : 0;
+        for(int i = -framesBehind; i <= framesAhead; i++){
+            long position = currentFrame + direction * (long)Math.floor(offset + i * stride);
+            int index = landing(position);
+            if(index >= 0) windowFrames.set(index);
+        }
+        sequence.pin(window, windowFrames);
+        return sequence;
     }
     
     /**
-     * handled by internal thread, don't call manually
+     * returns the frame the playhead reaches at a position counted past the ends of the sequence
+     * @param position
+     * @return frame index or -1 if playback stops before reaching it
      */
-    public void run() {
-    	
-        while (isThreadRunning) {
-        	// wait based on set frame rate
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {}
-            // check if still loading
-            if(loading){
-            	checkLoaded();
+    private int landing(long position){
+        if(position >= 0 && position < numFrames) return (int)position;
+        if(pingPong){
+            if(numFrames == 1) return 0;
+            long period = 2L * (numFrames - 1);
+            int index = (int)Math.floorMod(position, period);
+            return index < numFrames ? index : (int)(period - index);
+        }
+        return isLooping ? (int)Math.floorMod(position, (long)numFrames) : -1;
+    }
+    
+    /**
+     * returns the direction the playhead moves in: 1 forward, -1 in reverse
+     * (negative rates and the way back when playing ping-pong)
+     * @return
+     */
+    int direction(){
+        int direction = rate < 0 ? -1 : 1;
+        return bouncing ? -direction : direction;
+    }
+    
+    /**
+     * returns true if the playhead wraps around from one end of the sequence to the other
+     * (looping, not ping-pong)
+     * @return
+     */
+    boolean wrapsAround(){
+        return isLooping && !pingPong;
+    }
+    
+    /**
+     * called by the scheduler thread: update loading state and
+     * advance the playhead by as many frames as wall-clock time requires
+     * @param now - current System.nanoTime()
+     * @return System.nanoTime() at which the next update is due
+     */
+    long update(long now){
+        // how late did the scheduler thread wake up ? (earlier updates were requested by a change)
+        if(deadline != 0 && now >= deadline){
+            metrics.oversleeps.record(now - deadline);
+        }
+        // keep the read-ahead window moving with the playhead
+        if(streaming){
+            updateWindow();
+        }
+        ISSequence sequence = this.sequence;
+        // check frames passed to init(PImage[]) which are still loading
+        if(sequence != null){
+        	sequence.checkLoaded();
+        }
+        // if playback is attempted with no frames, exit
+        if(sequence == null || sequence.numFrames == 0){
+        	System.err.println("no frames loaded, use init() to run again with a different image sequence");
+        	ISScheduler.unregister(this);
+        	stop();
+        	deadline = 0;
+        	return now;
+        }
+        // switch to the next queued sequence once it's pre-rolled
+        if(cued){
+            playNext();
+            sequence = this.sequence;
+        }
+        // to adjust width/height properties, show the frame under the playhead as soon as it loads (assumes all frames have same dimensions)
+        showLoadedFrame();
+        // (re)start the clock from the time playback was started or the frame rate changed
+        long duration = frameDuration;
+        if(clockRestarted){
+            clockRestarted = false;
+            clockStart = clockRestartTime;
+            clockSteps = 0;
+        }
+        // pre() doesn't run while the sketch doesn't loop: dispatch on this thread instead
+        if(!isSketchLooping()){
+            dispatchEvents();
+        }
+        // if not playing back, keep ticking at the frame rate to check loading
+        if (!isPlaying) {
+            deadline = now + duration;
+            return deadline;
+        }
+        // how many frames should have been shown since the clock started ?
+        long due = (now - clockStart) / duration;
+        long late = due - clockSteps;
+        if(late > 0){
+            if(latePolicy == DROP_FRAMES){
+                // skip frames to catch up with wall-clock time
+                move(late);
+                clockSteps = due;
+                if(late > 1) metrics.framesDropped.addAndGet(late - 1);
+            }else{
+                // show every frame: advance one and let the clock slip if it's behind
+                move(1);
+                clockSteps++;
+                if(late > 1){
+                    clockStart = now - clockSteps * duration;
+                    metrics.framesLate.incrementAndGet();
+                }
             }
-            // if playback is attempted with no frames, exit
-            if(frames == null || frames.length == 0){
-            	System.err.println("no frames loaded, use init() to run again with a different image sequence");
-            	isThreadRunning = false;
-            	stop();
-            	return;
+            metrics.advanced(now);
+        }
+        deadline = clockStart + (clockSteps + 1) * duration;
+        return deadline;
+    }
+    
+    /**
+     * move the playhead by the playback rate, dispatching onSequencePlayed and
+     * looping, turning around (ping-pong) or stopping at the ends of the sequence
+     * @param ticks - number of frame durations to move by
+     */
+    private void move(long ticks){
+        synchronized (playhead) {
+            // playback may have been stopped since the update started, or holds the last frame for the next queued sequence
+            if(!isPlaying || numFrames == 0 || holding) return;
+            // whole frames to move by, the remainder carries over to the next update
+            double distance = ticks * (double)Math.abs(rate) + fraction;
+            long steps = (long)distance;
+            fraction = distance - steps;
+            if(steps == 0) return;
+            // no need to loop around more than once when dropping lots of frames
+            long period = pingPong ? Math.max(1, 2L * (numFrames - 1)) : numFrames;
+            if(isLooping && steps > period){
+                steps = period + steps % period;
             }
-            // to adjust width/height properties, reset this PImage to the first frame (assumes all frames have same dimensions)
-            if(!resized){
-                if(frames[0].width > 0 && frames[0].height > 0){
-                    super.init(frames[0].width, frames[0].height, ARGB);
-                    numPixels = width * height;
-                    resized = true;
+            int frame = currentFrame;
+            for(long i = 0; i < steps; i++){
+                int direction = direction();
+                int next = frame + direction;
+                finishedPlaying = false;
+                if(next >= 0 && next < numFrames){
+                    frame = next;
+                    continue;
                 }
-            }
-            // if playing back
-            if (isPlaying) {
-                // is this the last frame ?	
-                finishedPlaying = (currentFrame == numFrames - 1);
-                // if so
-                if (finishedPlaying) {
-                    // as long as there's a callback, try to call it
-                	if(onSequencePlayedMethod != null){
-                		
-                		// try to call main sketch
-            			try {
-            				onSequencePlayedMethod.invoke(parent, this);
-            			}catch (Exception e) {
-            				System.err.println("Error, disabling onSequencePlayed()");
-            				System.err.println(e.getLocalizedMessage());
-            				onSequencePlayedMethod = null;
-            			}
-                		
-                	}
-                	
-                	// reset play head if looping, otherwise stop
-                    if (isLooping) {
-                    	jump(0);
-                    }else{
-                    	stop();
+                // reached the far end playing ping-pong: turn around
+                if(pingPong && !bouncing && numFrames > 1){
+                    bouncing = true;
+                    frame -= direction;
+                    continue;
+                }
+                // is this the last frame ?
+                finishedPlaying = true;
+                // notify the sketch before its next draw(), playback timing doesn't wait for it
+                events.add(SEQUENCE_PLAYED);
+                
+                // a queued sequence takes over, instead of looping or stopping
+                if(getQueueLength() > 0){
+                    jumpTo(frame);
+                    if(!playNext()){
+                        cued = true;
+                        holding = true;
                     }
-                    
-                } else {
-                	// gotoAndStop(nextFrame);
-                	jump(currentFrame + 1);
+                    return;
+                }
+                // reset play head if looping, otherwise stop on the frame reached (offline too, without rewinding)
+                if (!isLooping && rewindAtEnd) {
+                    stop();
+                    return;
+                }
+                if (!isLooping) {
+                    isPlaying = false;
+                    bouncing = false;
+                    fraction = 0;
+                    stoppedAtEnd = true;
+                    jumpTo(frame);
+                    return;
+                }
+                if(pingPong){
+                    // back where playback started: head out again
+                    bouncing = false;
+                    if(numFrames > 1) frame -= direction;
+                }else{
+                    frame = direction > 0 ? 0 : numFrames - 1;
                 }
             }
+            jumpTo(frame);
         }
     }
     
     /**
-     * stop playback and thread
+     * stop playback and updates and release the frames (once no other player shows them)
      */
     public void dispose() {
-    	isThreadRunning = false;
-        stop();
-        playbackThread = null;
+    	unregisterMBean();
+    	ISScheduler.unregister(this);
+    	if(parent != null) parent.unregisterMethod("pre", this);
+        clean();
     }
     
     /**
-     * stop playback and remove all frames
+     * stop playback and remove all frames, and the queued sequences
+     * (the frames are released once no other player shows them)
      */
     public void clean(){
         stop();
-        for(int i = 0 ; i < numFrames; i++) frames[i] = null;
-        numFrames = 0;
+        clearQueue();
+        ISSequence sequence;
+        ISSequence.Window window;
+        synchronized (this) {
+            sequence = this.sequence;
+            window = this.window;
+            this.sequence = null;
+            this.window = null;
+            numFrames = 0;
+            windowFrame = -1;
+            // show (and size to) the first frame of the next sequence as soon as it loads
+            resized = false;
+        }
+        if(sequence != null){
+            sequence.detach(window);
+        }
     }
     
     /**
@@ -324,49 +1127,261 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
      * @param where
      */
     public void jump(int where) {
-        if (numFrames > where) {
-            currentFrame = where;
+        synchronized (playhead) {
+            // start counting towards the next frame from the new one
+            fraction = 0;
+            stoppedAtEnd = false;
+            jumpTo(where);
+        }
+    }
+    
+    /**
+     * offline only (see setOffline()): move the playhead by one frame duration at the playback rate
+     * and wait until the frame it lands on is decoded
+     */
+    public void advance(){
+        advance(1);
+    }
+    
+    /**
+     * offline only (see setOffline()): move the playhead by a number of frame durations at the playback rate
+     * (looping, ping-pong and onSequencePlayed() as during playback, call play() or loop() first)
+     * and wait until the frame it lands on is decoded, then show it. The frames ahead keep decoding in the background.
+     * advance(0) only waits for the current frame, e.g. the first one after init()
+     * @param frames - number of frame durations
+     */
+    public void advance(int frames){
+        step(frames);
+        // pre() won't run before a sketch stepping in setup(), keyPressed() or with noLoop() needs the events:
+        // dispatch them now, like jumpTo() presents the frame right away
+        Thread animation = animationThread;
+        if(animation == null || animation == Thread.currentThread() || !isSketchLooping()){
+            dispatchEvents();
+        }
+    }
+    
+    /**
+     * move the offline playhead and wait for the frame it lands on, see advance()
+     * @param frames - number of frame durations
+     */
+    private void step(int frames){
+        if(!offline){
+            System.err.println("advance() only steps offline players, call setOffline(true) first");
+            return;
+        }
+        // the next queued sequence was cued: wait for it
+        boolean switched = awaitNext();
+        if(Thread.currentThread().isInterrupted()) return;
+        // switching shows the next sequence's first frame: that's a step
+        if(switched && frames > 0) frames--;
+        if(frames > 0){
+            move(frames);
+            // the sequence ended before the next one was pre-rolled: it takes over on this step all the same,
+            // rather than the last frame being shown twice depending on how fast it pre-rolled
+            if(holding) awaitNext();
+            if(Thread.currentThread().isInterrupted()) return;
+        }
+        ISSequence sequence = this.sequence;
+        if(sequence == null) return;
+        int index = currentFrame;
+        // the frame may have been evicted (see setMemoryBudget()) while the playhead stood still
+        if(sequence.hasEvictedFrames()){
+            reloadEvictedFrames(sequence);
+        }
+        // frames passed to init(PImage[]) are checked here, as the scheduler doesn't update offline players
+        while(!sequence.awaitFrame(index, AWAIT_INTERVAL)){
+            sequence.checkLoaded();
+            // init() or clean() from another thread
+            if(sequence != this.sequence) return;
+        }
+        metrics.framesAdvanced.addAndGet(Math.max(0, frames));
+        // show it now it's decoded
+        jumpTo(index);
+    }
+    
+    /**
+     * offline only: wait until the cued sequence is pre-rolled and switch to it
+     * @return true if the player switched (false if nothing was cued or the thread was interrupted)
+     */
+    private boolean awaitNext(){
+        boolean switched = false;
+        while(cued && !(switched = playNext())){
+            try {
+                Thread.sleep(AWAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return switched;
+    }
+    
+    /**
+     * move the playhead to a frame and publish it (if it's loaded)
+     * @param where
+     */
+    private void jumpTo(int where) {
+        synchronized (playhead) {
+            ISSequence sequence = this.sequence;
+            if (where < 0 || sequence == null || where >= sequence.numFrames) return;
             
-            if(frames[currentFrame].width > 0 && frames[currentFrame].height > 0){
-                
-            	try{
-                    System.arraycopy(frames[currentFrame].pixels, 0, pixels, 0, numPixels);
-                }catch(Exception e){
-                    e.printStackTrace();
-                }
-                
-                if(currentFrame == numFrames-1) {
-                	loading = false;
+            currentFrame = where;
+            // move the read-ahead window before presenting, so seeking starts decoding right away
+            if(streaming){
+                updateWindow();
+            }
+            sequence.touch(where);
+            // frames evicted to keep within the memory budget are decoded again as the playhead reaches them
+            if(sequence.hasEvictedFrames()){
+                reloadEvictedFrames(sequence);
+            }
+            // when streaming, a frame which hasn't decoded yet holds the previous one on screen
+            PImage frame = sequence.frame(where);
+            if(frame != null && frame == publishedFrame && !copyPixels){
+                // identical to the frame on screen (see ISStats.getFramesShared()): nothing to copy, expand or upload
+            }else if(frame instanceof ISEncodedFrame && frame.pixels == null){
+                // compact and delta frames are expanded when presented
+                frameBuffer.publish((ISEncodedFrame)frame, copyPixels);
+                publishedFrame = frame;
+                if(!resized) metrics.firstFrameShown();
+                resized = true;
+            }else if(frame != null && frame.width > 0 && frame.height > 0 
+                    && frame.pixels != null && frame.pixels.length == frame.width * frame.height){
+                // publish the frame's own pixels (O(1)), unless copying was requested
+                frameBuffer.publish(frame.pixels, frame.width, frame.height, copyPixels);
+                publishedFrame = frame;
+                if(!resized) metrics.firstFrameShown();
+                resized = true;
+            }
+        }
+        // when called from draw() (or before the sketch started drawing) show the frame right away
+        Thread animation = animationThread;
+        if(animation == null || animation == Thread.currentThread()){
+            present();
+        }
+    }
+    
+    /**
+     * queue the evicted frames under and just ahead of the playhead for decoding
+     * @param sequence
+     */
+    private void reloadEvictedFrames(ISSequence sequence){
+        BitSet wanted = new BitSet();
+        int direction = direction();
+        double stride = Math.max(1, Math.abs(rate));
+        for(int i = 0; i <= RELOAD_AHEAD; i++){
+            int index = landing(currentFrame + direction * (long)Math.floor(i * stride));
+            if(index >= 0) wanted.set(index);
+        }
+        if(sequence.demand(wanted)){
+            ISDecoder.request(sequence);
+        }
+    }
+    
+    /**
+     * handled by the sketch before each draw(), don't call manually:
+     * shows the most recently published frame and dispatches the events queued since the previous draw()
+     */
+    public void pre(){
+        metrics.drawn(System.nanoTime());
+        animationThread = Thread.currentThread();
+        present();
+        // events which happened since the previous draw(), handlers see the frame just presented
+        dispatchEvents();
+    }
+    
+    /**
+     * take the most recently published frame (if any) from the frame buffer and show it,
+     * resizing this image if the frame's dimensions differ
+     */
+    private void present(){
+        // never block: if another thread is presenting, the frame is picked up next time
+        if(!presenting.compareAndSet(false, true)) return;
+        try{
+            if(frameBuffer.acquire()){
+                int frameWidth = frameBuffer.width();
+                int frameHeight = frameBuffer.height();
+                if(frameWidth != width || frameHeight != height){
+                    super.init(frameWidth, frameHeight, ARGB);
                 }
+                pixels = frameBuffer.pixels();
+                updatePixels();
             }
-            updatePixels();
-
+        }finally{
+            presenting.set(false);
+        }
+    }
+    
+    /**
+     * resize this image ahead of the frames (e.g. to the dimensions listed in a manifest)
+     * @param frameWidth - 0 if unknown
+     * @param frameHeight - 0 if unknown
+     */
+    private void sizeTo(int frameWidth, int frameHeight){
+        if(frameWidth <= 0 || frameHeight <= 0) return;
+        // a thread presenting a frame resizes this image anyway
+        if(!presenting.compareAndSet(false, true)) return;
+        try{
+            if(frameWidth != width || frameHeight != height){
+                super.init(frameWidth, frameHeight, ARGB);
+            }
+        }finally{
+            presenting.set(false);
         }
     }
     
     /**
      * stop playback and reset to first frame
+     * (the last frame when playing in reverse)
      */
     public void stop() {
-        isPlaying = false;
-        currentFrame = 0;
+        synchronized (playhead) {
+            isPlaying = false;
+            bouncing = false;
+            fraction = 0;
+            stoppedAtEnd = false;
+            currentFrame = rate < 0 ? Math.max(0, numFrames - 1) : 0;
+        }
     }
     
     /**
-     * play/resume
+     * play/resume (from the first frame once playback stopped at the end of the sequence)
      */
     public void play() {
+        if(stoppedAtEnd) stop();
+        if(!isPlaying) restartClock();
         isPlaying = true;
     }
     
     /**
-     * resume playback and loop
+     * resume playback and loop (from the first frame once playback stopped at the end of the sequence)
      */
     public void loop() {
+        if(stoppedAtEnd) stop();
+        if(!isPlaying) restartClock();
         isPlaying = true;
         isLooping = true;
     }
     
+    /**
+     * what playback does at the end of the sequence when not looping:
+     * stay on the last frame (false, default: currentFrame() returns the last frame and play() starts over)
+     * or stop() and rewind to the first frame as earlier versions did (true: the last frame stays on screen
+     * while currentFrame() returns 0 until the next jump())
+     * @param rewind
+     */
+    public void setRewindAtEnd(boolean rewind){
+        rewindAtEnd = rewind;
+    }
+    
+    /**
+     * returns true if playback rewinds to the first frame at the end of the sequence when not looping
+     * @return
+     */
+    public boolean isRewindingAtEnd(){
+        return rewindAtEnd;
+    }
+    
     /**
      * set loop flag to true, but don't resume playback yet
      */
@@ -390,19 +1405,377 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
     
     /**
      * change playback rate
-     * @param ms
+     * @param ms - milliseconds per frame (at least 1)
      */
     public void setDelay(int ms){
         if(ms < 0) return;
-        delay = ms;
+        frameDuration = Math.max(1, ms) * 1000000L;
+        restartClock();
+    }
+    
+    /**
+     * change playback rate in frames per second (fractional rates such as 29.97 are kept exact)
+     * @param fps
+     */
+    public void setFrameRate(float fps){
+        if(fps <= 0) return;
+        frameDuration = Math.round(1e9 / fps);
+        restartClock();
+    }
+    
+    /**
+     * returns the playback rate in frames per second
+     * @return
+     */
+    public float getFrameRate(){
+        return (float)(1e9 / frameDuration);
+    }
+    
+    /**
+     * change playback speed relative to the frame rate: 2 plays twice as fast, 0.5 at half speed,
+     * negative rates play in reverse (-1 backwards at normal speed). The frame rate stays the same:
+     * at 4x every 4th frame is shown and, when streaming, only the frames shown are decoded,
+     * ahead of the playhead in the direction it's moving. 0 holds the current frame
+     * @param rate
+     */
+    public void setRate(float rate){
+        if(Float.isNaN(rate) || Float.isInfinite(rate)) return;
+        this.rate = rate;
+    }
+    
+    /**
+     * returns the playback speed relative to the frame rate (negative in reverse)
+     * @return
+     */
+    public float getRate(){
+        return rate;
+    }
+    
+    /**
+     * play back and forth (true): turn around at the end of the sequence and come back,
+     * rather than starting over from the other end (false, default).
+     * onSequencePlayed() is called each time the playhead is back where it started:
+     * looping keeps bouncing, otherwise playback stops there
+     * @param enabled
+     */
+    public void setPingPong(boolean enabled){
+        pingPong = enabled;
+        if(!enabled) bouncing = false;
+    }
+    
+    /**
+     * returns true if playback turns around at the ends of the sequence
+     * @return
+     */
+    public boolean isPingPong(){
+        return pingPong;
+    }
+    
+    /**
+     * what to do when playback falls behind wall-clock time (e.g. the system is under load):
+     * DROP_FRAMES skips the late frames to stay in sync (default),
+     * HOLD_FRAMES shows every frame and lets playback slip
+     * @param policy - ISPlayer.DROP_FRAMES or ISPlayer.HOLD_FRAMES
+     */
+    public void setLatePolicy(int policy){
+        latePolicy = policy == HOLD_FRAMES ? HOLD_FRAMES : DROP_FRAMES;
+    }
+    
+    /**
+     * returns the late frames policy (ISPlayer.DROP_FRAMES or ISPlayer.HOLD_FRAMES)
+     * @return
+     */
+    public int getLatePolicy(){
+        return latePolicy;
+    }
+    
+    /**
+     * count frames from now on: called when playback (re)starts or the frame rate changes
+     */
+    private void restartClock(){
+        metrics.clockRestarted();
+        clockRestartTime = System.nanoTime();
+        clockRestarted = true;
+        // update right away so the next frame is scheduled from now
+        ISScheduler.reschedule(this);
+    }
+    
+    /**
+     * returns true if only a window of frames around the playhead is kept in memory
+     * @return
+     */
+    public boolean isStreaming(){
+        return streaming;
+    }
+    
+    /**
+     * copy each frame into this image's own pixels (true)
+     * or present each frame's pixels directly without copying (false, default).
+     * Enable copying for sketches which write into this player's pixels,
+     * otherwise changes would end up in the frames themselves.
+     * Copies are made on the playback thread all players share, one player at a time:
+     * with many players of large frames, copying can make them fall behind
+     * @param copy
+     */
+    public void setCopyPixels(boolean copy){
+        copyPixels = copy;
+        // stop sharing the current frame's buffer right away
+        if(copy) jumpTo(currentFrame);
+    }
+    
+    /**
+     * returns true if each frame is copied into this image's own pixels
+     * @return
+     */
+    public boolean isCopyingPixels(){
+        return copyPixels;
+    }
+    
+    /**
+     * store frames loaded from now on in less memory when their content allows it:
+     * frames with up to 256 colours as 8-bit palette indices (a quarter of the memory),
+     * other opaque frames as packed RGB (three quarters of the memory).
+     * Frames are then expanded when presented, rather than presented without copying,
+     * on the playback thread shared by all players (the expansions of all players add up there).
+     * Call before init() to apply it to a whole sequence.
+     * Compact frames returned by getPImages() need loadPixels() before accessing their pixels.
+     * @param compact
+     */
+    public void setCompactFrames(boolean compact){
+        compactFrames = compact;
+    }
+    
+    /**
+     * returns true if frames are stored in less memory when their content allows it
+     * @return
+     */
+    public boolean isCompactingFrames(){
+        return compactFrames;
+    }
+    
+    /**
+     * store the frames of sequences loaded from now on as the tiles which differ from a keyframe,
+     * with a keyframe every keyframeInterval frames. Suits animations where little changes between frames:
+     * only keyframes and changed tiles are kept in memory and moving between frames
+     * of the same keyframe only copies the tiles which changed.
+     * Frames where more than half of the tiles changed are stored in full.
+     * Tiles are patched on the single playback thread which presents every player's frames in turn.
+     * Call before init(), 0 turns delta frames off (default)
+     * @param keyframeInterval - number of frames per keyframe (e.g. 30)
+     */
+    public void setDeltaFrames(int keyframeInterval){
+        this.keyframeInterval = Math.max(0, keyframeInterval);
+    }
+    
+    /**
+     * returns the number of frames per keyframe when storing delta frames (0 if off)
+     * @return
+     */
+    public int getKeyframeInterval(){
+        return keyframeInterval;
+    }
+    
+    /**
+     * decode the frames of sequences loaded from now on at a fraction of their size,
+     * e.g. 0.25 for 4K renders shown as 960x540 tiles: frames take up (and cost to present) only as many pixels as are displayed.
+     * Images are decoded skipping pixels where the format allows it, then averaged down to size.
+     * Call before init(), 1 keeps frames at full size (default)
+     * @param scale - scale factor (0 to 1)
+     */
+    public void setDecodeScale(float scale){
+        decodeScale = scale > 0 && scale < 1 ? scale : 1;
+        decodeWidth = 0;
+        decodeHeight = 0;
+    }
+    
+    /**
+     * decode the frames of sequences loaded from now on to fit a size, keeping their aspect ratio
+     * (frames are never enlarged). Call before init(), 0 x 0 keeps frames at full size (default)
+     * @param width - maximum width (0 for any width)
+     * @param height - maximum height (0 for any height)
+     */
+    public void setDecodeSize(int width, int height){
+        decodeScale = 1;
+        decodeWidth = Math.max(0, width);
+        decodeHeight = Math.max(0, height);
+    }
+    
+    /**
+     * returns the scale factor frames are decoded at (1 if full size or fitting a size)
+     * @return
+     */
+    public float getDecodeScale(){
+        return decodeScale;
+    }
+    
+    /**
+     * list the frames of folders loaded from now on from a manifest: an index of the frames' file names,
+     * dimensions and formats written next to them on the first scan (or to the temporary folder if it's read only)
+     * and reused while the folder's modification time is unchanged. Opening large folders again skips listing them
+     * and players take on the sequence's dimensions right away instead of once the first frame is decoded.
+     * Call before init(), off by default (delete the manifest after replacing frames without renaming them)
+     * @param enabled
+     */
+    public void setManifest(boolean enabled){
+        useManifest = enabled;
+    }
+    
+    /**
+     * play the frames of folders (and archives) loaded from now on with the numbers in their file names sorted by value:
+     * frame2.png before frame10.png. Off by default: file names are sorted character by character
+     * (frame10.png before frame2.png), as in earlier versions, so number frames with leading zeros or turn this on.
+     * Call before init()
+     * @param enabled
+     */
+    public void setNaturalOrder(boolean enabled){
+        naturalOrder = enabled;
     }
     
     /**
-     * returns the array of loaded images
+     * returns true if numbers in file names are sorted by value
+     * @return
+     */
+    public boolean isNaturalOrder(){
+        return naturalOrder;
+    }
+    
+    /**
+     * append frames written to folders loaded from now on as they arrive (e.g. render output still being written):
+     * new image files are added in file name order once fully written and only they are decoded,
+     * frames already loaded and the playhead are left as they are. totalFrames() grows accordingly.
+     * Files written out of order (sorting before the last frame) are skipped.
+     * Call before init(), off by default
+     * @param enabled
+     */
+    public void setWatching(boolean enabled){
+        watching = enabled;
+    }
+    
+    /**
+     * step the playhead with advance() instead of wall-clock time, e.g. to render a sequence to files
+     * or compare frames in tests: frames are shown exactly once each, as fast as they decode,
+     * whatever the frame rate. The player stops updating on the scheduler thread until set back to false
+     * @param enabled
+     */
+    public void setOffline(boolean enabled){
+        offline = enabled;
+        if(enabled){
+            ISScheduler.unregister(this);
+        }else if(sequence != null){
+            restartClock();
+            register();
+        }
+    }
+    
+    /**
+     * returns true if the playhead is stepped with advance() rather than wall-clock time
+     * @return
+     */
+    public boolean isOffline(){
+        return offline;
+    }
+    
+    /**
+     * returns true if frames written to folders are appended as they arrive
+     * @return
+     */
+    public boolean isWatching(){
+        return watching;
+    }
+    
+    /**
+     * process each frame once, as it loads, instead of every draw() (e.g. tint, colour key, crop or mask):
+     * frames are transformed on the decode threads, several at a time, and only count as loaded once transformed.
+     * Players with the same location and transform instance share the transformed frames.
+     * Call before init(), null (default) for none
+     * @param transform - must be thread safe
+     */
+    public void setFrameTransform(ISFrameTransform transform){
+        frameTransform = transform;
+    }
+    
+    /**
+     * returns the transform applied to frames as they load (null for none)
+     * @return
+     */
+    public ISFrameTransform getFrameTransform(){
+        return frameTransform;
+    }
+    
+    /**
+     * returns true if folders are listed from a manifest
+     * @return
+     */
+    public boolean isUsingManifest(){
+        return useManifest;
+    }
+    
+    /**
+     * returns the image of the current frame (without copying)
+     * or null if it hasn't loaded yet
+     * @return
+     */
+    public PImage getFrame(){
+        ISSequence sequence = this.sequence;
+        return sequence != null ? sequence.frame(currentFrame) : null;
+    }
+    
+    /**
+     * change how many threads all players share to decode frames
+     * (defaults to the number of processors minus one)
+     * @param threads
+     */
+    public static void setDecodeThreads(int threads){
+        ISDecoder.setMaxThreads(threads);
+    }
+    
+    /**
+     * returns how many threads all players share to decode frames
+     * @return
+     */
+    public static int getDecodeThreads(){
+        return ISDecoder.getMaxThreads();
+    }
+    
+    /**
+     * limit the memory all players' frames take together: once it's exceeded, the frames used least recently
+     * (across all players, idle sequences first) are evicted and decoded again when the playhead reaches them.
+     * Players count evicted frames as loaded (they're reloaded on demand), the sketch's
+     * onFramesEvicted(ISPlayer) is called when some of a player's frames are evicted.
+     * Images passed to init(PImage[], String) and sprite sheets (counted once per sheet) are counted but never evicted
+     * @param bytes - 0 (default) for unlimited
+     */
+    public static void setMemoryBudget(long bytes){
+        ISMemory.setBudget(bytes);
+    }
+    
+    /**
+     * returns the memory all players' frames may take together
+     * @return bytes, 0 if unlimited
+     */
+    public static long getMemoryBudget(){
+        return ISMemory.getBudget();
+    }
+    
+    /**
+     * returns the memory all players' frames take at the moment
+     * (getStats().getFrameBytes() returns a sequence's share)
+     * @return bytes
+     */
+    public static long getMemoryUsed(){
+        return ISMemory.used();
+    }
+    
+    /**
+     * returns the array of loaded images, shared by all players of the same sequence
+     * (when streaming, frames outside of every player's read-ahead window are null,
+     * with compact or delta frames, call loadPixels() on a frame before accessing its pixels,
+     * when watching a folder, the sequence moves to a longer array as frames are appended)
      * @return
      */
     public PImage[] getPImages() {
-        return frames;
+        ISSequence sequence = this.sequence;
+        return sequence != null ? sequence.frames : null;
     }
     /**
      * returns true if the playhead is automatically incremented
@@ -446,6 +1819,7 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
     
     /**
      * returns true as long as images have yet to fully load
+     * (when streaming, as long as the read-ahead window isn't fully decoded)
      * @return
      */
     public boolean isLoading(){
@@ -455,11 +1829,65 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
     /**
      * returns a normalized value (0.0 to 1.0)
      * where 0 = 0%, 0.5 = 50%, 1.0 = 100%
+     * (when streaming, the progress refers to the read-ahead window).
+     * Like isLoading(), frames evicted to keep within the memory budget and frames which couldn't be loaded count as done
      * 
      * @return
      */
     public float getLoadProgress(){
-        return loadProgress;
+        ISSequence.Window window = this.window;
+        if(window == null) return 0;
+        int toLoad = window.toLoad;
+        return toLoad > 0 ? Math.min(1f, (float)(window.loaded + window.evicted + window.failed) / toLoad) : 0;
+    }
+    
+    /**
+     * returns a snapshot of the loading and playback metrics:
+     * decode times, frames decoded/evicted, frames dropped or late, actual vs target frame interval,
+     * how late the playback thread wakes up, time between draw() calls, memory held and time to first frame
+     * @return
+     */
+    public ISStats getStats(){
+        ISSequence sequence = this.sequence;
+        return new ISStats(metrics, sequence != null ? sequence.metrics : noMetrics, frameBuffer.bytes(), frameDuration);
+    }
+    
+    /**
+     * clear this player's playback metrics (decoding metrics belong to the sequence)
+     */
+    public void resetStats(){
+        metrics.resetPlayback();
+    }
+    
+    /**
+     * expose this player's metrics over JMX (e.g. to jconsole or VisualVM),
+     * as com.hirschandmann.image:type=ISPlayer,name=(sequence name),id=(instance)
+     * until dispose() is called
+     */
+    public synchronized void registerMBean(){
+        if(mbeanName != null) return;
+        try {
+            ObjectName objectName = new ObjectName("com.hirschandmann.image:type=ISPlayer,name=" + ObjectName.quote(String.valueOf(name)) + ",id=" + System.identityHashCode(this));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (Exception e) {
+            System.err.println("couldn't register " + this + " with JMX");
+            System.err.println(e.getLocalizedMessage());
+        }
+    }
+    
+    /**
+     * stop exposing this player's metrics over JMX
+     */
+    public synchronized void unregisterMBean(){
+        if(mbeanName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (Exception e) {
+            System.err.println("couldn't unregister " + this + " from JMX");
+            System.err.println(e.getLocalizedMessage());
+        }
+        mbeanName = null;
     }
     
     /**
@@ -498,9 +1926,13 @@ public class ISPlayer extends PImage implements PConstants,Runnable {
 	}
     
 	// "kindly borrowed" from https://github.com/processing/processing/blob/master/java/libraries/serial/src/processing/serial/Serial.java
- 	private Method findCallback(final String name,Class<ISPlayer> argumentType) {
+	// resolved to a handle bound to the sketch, taking the player and ignoring any return value
+ 	private MethodHandle findCallback(final String name,Class<ISPlayer> argumentType) {
  		try {
- 	      return parent.getClass().getMethod(name, argumentType);
+ 	      Method method = parent.getClass().getMethod(name, argumentType);
+ 	      // sketch classes may not be public
+ 	      method.setAccessible(true);
+ 	      return MethodHandles.lookup().unreflect(method).bindTo(parent).asType(MethodType.methodType(void.class, ISPlayer.class));
  	    } catch (Exception e) {
  	    	System.out.println("couldn't find " + name + " callback in sketch, ignoring data");
  	    	//e.printStackTrace();
@@ -0,0 +1,37 @@
+package com.hirschandmann.image;
+
+/**
+ * Image sequence player events (see ISPlayer.addListener()).
+ * Events are queued as they happen and delivered on the sketch's animation thread, before draw(),
+ * so handlers may draw or change the player without racing draw() and never delay playback
+ * (sketches which don't loop receive them on the playback thread, offline steps on the thread calling advance()).
+ * A sketch implementing this interface receives the events of all its players,
+ * sketches which only define some of these methods receive those.
+ */
+public interface ISPlayerListener {
+
+    /**
+     * the first frame of the player's sequence loaded
+     * @param player
+     */
+    default void firstFrameLoaded(ISPlayer player){}
+
+    /**
+     * all the frames the player needs are loaded (when streaming, the read-ahead window, once per sequence)
+     * @param player
+     */
+    default void onSequenceLoaded(ISPlayer player){}
+
+    /**
+     * the playhead reached the end of the sequence (or came back where it started, playing ping-pong)
+     * @param player
+     */
+    default void onSequencePlayed(ISPlayer player){}
+
+    /**
+     * some of the player's frames were evicted to keep within the memory budget (see ISPlayer.setMemoryBudget())
+     * @param player
+     */
+    default void onFramesEvicted(ISPlayer player){}
+
+}
@@ -0,0 +1,33 @@
+package com.hirschandmann.image;
+
+/**
+ * JMX view of an image sequence player, registered with ISPlayer.registerMBean()
+ * (e.g. to watch a running show's metrics with jconsole or VisualVM)
+ */
+public interface ISPlayerMXBean {
+
+    /**
+     * returns the name of the sequence
+     * @return
+     */
+    String getName();
+
+    /**
+     * returns the playback rate in frames per second
+     * @return
+     */
+    float getFrameRate();
+
+    /**
+     * returns the load progress (0.0 to 1.0)
+     * @return
+     */
+    float getLoadProgress();
+
+    /**
+     * returns a snapshot of the loading and playback metrics
+     * @return
+     */
+    ISStats getStats();
+
+}
@@ -0,0 +1,148 @@
+package com.hirschandmann.image;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+/**
+ * Downscales frames as they're decoded, either by a scale factor or to fit a size (keeping the aspect ratio),
+ * so the frames held in memory and presented are only as large as they're displayed.
+ * Frames are averaged over the source pixels each target pixel covers (weighted by alpha) and never upscaled.
+ */
+final class ISResampler implements PConstants {
+
+    // scale factor (0 to 1) when not fitting a size
+    private final float scale;
+    // size to fit frames in (0 for an unconstrained dimension, both 0 if scaling by a factor)
+    private final int maxWidth;
+    private final int maxHeight;
+
+    private ISResampler(float scale, int maxWidth, int maxHeight){
+        this.scale = scale;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    /**
+     * returns a resampler for a scale factor or a size to fit
+     * @param scale - scale factor (ignored if a size is set)
+     * @param maxWidth - width to fit frames in (0 for any width)
+     * @param maxHeight - height to fit frames in (0 for any height)
+     * @return a resampler or null if frames are kept at their full size
+     */
+    static ISResampler of(float scale, int maxWidth, int maxHeight){
+        if(maxWidth > 0 || maxHeight > 0) return new ISResampler(1, Math.max(0, maxWidth), Math.max(0, maxHeight));
+        if(scale > 0 && scale < 1) return new ISResampler(scale, 0, 0);
+        return null;
+    }
+
+    /**
+     * returns the scale factor for a frame size
+     * @param width
+     * @param height
+     * @return 0 to 1
+     */
+    private float factor(int width, int height){
+        if(maxWidth == 0 && maxHeight == 0) return scale;
+
+        float factor = 1;
+        if(maxWidth > 0) factor = Math.min(factor, (float)maxWidth / width);
+        if(maxHeight > 0) factor = Math.min(factor, (float)maxHeight / height);
+        return factor;
+    }
+
+    /**
+     * returns the width frames of a size are downscaled to
+     * @param width - source width
+     * @param height - source height
+     * @return
+     */
+    int width(int width, int height){
+        return Math.max(1, Math.round(width * factor(width, height)));
+    }
+
+    /**
+     * returns the height frames of a size are downscaled to
+     * @param width - source width
+     * @param height - source height
+     * @return
+     */
+    int height(int width, int height){
+        return Math.max(1, Math.round(height * factor(width, height)));
+    }
+
+    /**
+     * returns by how much a decoder may subsample frames of a size (keep every nth pixel) before they're resampled:
+     * at least twice the target size is kept so resampling still averages pixels
+     * @param width - source width
+     * @param height - source height
+     * @return subsampling period (1 = none)
+     */
+    int subsampling(int width, int height){
+        return Math.max(1, (int)(1 / factor(width, height) / 2));
+    }
+
+    /**
+     * downscale a frame
+     * @param frame
+     * @return a new frame or the frame itself if it's already the right size
+     */
+    PImage resample(PImage frame){
+        return resample(frame, frame.width, frame.height);
+    }
+
+    /**
+     * downscale a frame which may have been subsampled while decoding
+     * @param frame
+     * @param originalWidth - width of the image before subsampling
+     * @param originalHeight - height of the image before subsampling
+     * @return a new frame or the frame itself if it's already the right size
+     */
+    PImage resample(PImage frame, int originalWidth, int originalHeight){
+        int sourceWidth = frame.width;
+        int sourceHeight = frame.height;
+        int targetWidth = width(originalWidth, originalHeight);
+        int targetHeight = height(originalWidth, originalHeight);
+        int[] source = frame.pixels;
+        if(source == null || source.length != sourceWidth * sourceHeight) return frame;
+        if(targetWidth >= sourceWidth && targetHeight >= sourceHeight) return frame;
+
+        boolean alpha = frame.format == ARGB;
+        PImage resampled = new PImage(targetWidth, targetHeight, alpha ? ARGB : RGB);
+        int[] target = resampled.pixels;
+        for(int ty = 0; ty < targetHeight; ty++){
+            int y0 = (int)((long)ty * sourceHeight / targetHeight);
+            int y1 = Math.max(y0 + 1, (int)((long)(ty + 1) * sourceHeight / targetHeight));
+            for(int tx = 0; tx < targetWidth; tx++){
+                int x0 = (int)((long)tx * sourceWidth / targetWidth);
+                int x1 = Math.max(x0 + 1, (int)((long)(tx + 1) * sourceWidth / targetWidth));
+                // colours are weighted by alpha so transparent pixels don't bleed into the average
+                long a = 0, r = 0, g = 0, b = 0;
+                for(int y = y0; y < y1; y++){
+                    for(int i = y * sourceWidth + x0, end = y * sourceWidth + x1; i < end; i++){
+                        int argb = source[i];
+                        int weight = alpha ? argb >>> 24 : 255;
+                        a += weight;
+                        r += (argb >> 16 & 0xFF) * weight;
+                        g += (argb >> 8 & 0xFF) * weight;
+                        b += (argb & 0xFF) * weight;
+                    }
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                if(a == 0){
+                    target[ty * targetWidth + tx] = 0;
+                }else{
+                    target[ty * targetWidth + tx] = (int)((a + count / 2) / count) << 24 | (int)(r / a) << 16 | (int)(g / a) << 8 | (int)(b / a);
+                }
+            }
+        }
+        return resampled;
+    }
+
+    /**
+     * String representation (part of the key sequences are shared by)
+     */
+    public String toString(){
+        return maxWidth > 0 || maxHeight > 0 ? maxWidth + "x" + maxHeight : String.valueOf(scale);
+    }
+
+}
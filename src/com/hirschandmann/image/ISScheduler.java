@@ -0,0 +1,180 @@
+package com.hirschandmann.image;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Playback timing thread shared by all image sequence players in a sketch.
+ * Players are kept in a queue ordered by the time their next update is due:
+ * the thread sleeps until the earliest one, updates it and puts it back in the queue,
+ * so the number of threads stays the same no matter how many players there are.
+ * Known limit: presenting frames happens on this thread too, one player after another.
+ * Copying frames (ISPlayer.setCopyPixels()), expanding compact frames and patching delta frames
+ * aren't spread over several cores: with many large players using them, updates queue up and frames are shown late
+ * (see ISStats.getFramesLate()).
+ */
+final class ISScheduler implements Runnable {
+
+    /**
+     * a registered player and the System.nanoTime() its next update is due at
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final ISPlayer player;
+        long time;
+        // false once the player unregistered (it may be updating at the time)
+        boolean active = true;
+        // true while the entry is in the queue (false while updating)
+        boolean queued;
+
+        Entry(ISPlayer player, long time){
+            this.player = player;
+            this.time = time;
+        }
+
+        public int compareTo(Entry other) {
+            return Long.compare(time - other.time, 0);
+        }
+    }
+
+    // registered players by due time
+    private static final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    // registered players
+    private static final HashMap<ISPlayer,Entry> entries = new HashMap<>();
+    // guards the queue and the entries
+    private static final Object lock = new Object();
+    // timing thread
+    private static Thread thread;
+
+    private ISScheduler(){}
+
+    /**
+     * start updating a player (does nothing if it's already registered)
+     * @param player
+     */
+    static void register(ISPlayer player){
+        synchronized (lock) {
+            if(entries.containsKey(player)) return;
+
+            Entry entry = new Entry(player, System.nanoTime());
+            entries.put(player, entry);
+            enqueue(entry);
+
+            // start the thread, or start it again should it have died (players it was updating are queued again)
+            if(thread == null || !thread.isAlive()){
+                for(Entry registered : entries.values()){
+                    if(!registered.queued) enqueue(registered);
+                }
+                thread = new Thread(new ISScheduler());
+                thread.setName("[ISPlayer - scheduler]");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * stop updating a player
+     * @param player
+     */
+    static void unregister(ISPlayer player){
+        synchronized (lock) {
+            Entry entry = entries.remove(player);
+            if(entry == null) return;
+
+            entry.active = false;
+            if(entry.queued){
+                queue.remove(entry);
+                entry.queued = false;
+            }
+        }
+    }
+
+    /**
+     * update a player as soon as possible (e.g. playback started or the frame rate changed)
+     * rather than when its previous schedule was due
+     * @param player
+     */
+    static void reschedule(ISPlayer player){
+        Thread waiting;
+        synchronized (lock) {
+            Entry entry = entries.get(player);
+            // not registered or already updating: the update will pick up the change
+            if(entry == null || !entry.queued) return;
+
+            queue.remove(entry);
+            entry.time = System.nanoTime();
+            queue.add(entry);
+            waiting = thread;
+        }
+        LockSupport.unpark(waiting);
+    }
+
+    /**
+     * returns true if the player is updated by the scheduler
+     * @param player
+     * @return
+     */
+    static boolean isRegistered(ISPlayer player){
+        synchronized (lock) {
+            return entries.containsKey(player);
+        }
+    }
+
+    /**
+     * add an entry to the queue, call while holding the lock
+     * @param entry
+     */
+    private static void enqueue(Entry entry){
+        entry.queued = true;
+        queue.add(entry);
+    }
+
+    /**
+     * timing loop: handled by the scheduler thread, don't call manually
+     */
+    public void run() {
+        while(true){
+            Entry due = null;
+            long wait = 0;
+
+            synchronized (lock) {
+                Entry next = queue.peek();
+                if(next != null){
+                    wait = next.time - System.nanoTime();
+                    if(wait <= 0){
+                        due = queue.poll();
+                        due.queued = false;
+                    }
+                }
+            }
+            // nothing due yet: sleep until the earliest player (or until woken by a change)
+            if(due == null){
+                if(wait > 0){
+                    LockSupport.parkNanos(this, wait);
+                }else{
+                    LockSupport.park(this);
+                }
+                continue;
+            }
+
+            long next;
+            try{
+                next = due.player.update(System.nanoTime());
+            }catch(Throwable e){
+                // the thread plays every player: a player failing (even running out of memory) mustn't stop the others
+                e.printStackTrace();
+                next = System.nanoTime() + 1000000000L;
+            }
+
+            synchronized (lock) {
+                if(due.active){
+                    due.time = next;
+                    enqueue(due);
+                }
+            }
+        }
+    }
+
+}
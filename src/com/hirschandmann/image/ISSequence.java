@@ -0,0 +1,1023 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Frames of an image sequence, shared by all the players showing it.
+ * Sequences are registered by canonical path and storage options
+ * (or by the array of images players were initialised with),
+ * so the players of a sequence decode it once and each only keep their own playhead.
+ * Each player pins the frames it wants in memory (all of them, or the window around its playhead when streaming):
+ * a frame is decoded once a player pins it and released once no player does,
+ * the sequence is released once its last player detaches.
+ * Pinned frames may also be evicted to keep within the memory budget (see ISMemory),
+ * they're decoded again once a playhead reaches them.
+ * Decoded frames are hashed: identical frames (held drawings, still sections of loops) share one image.
+ */
+final class ISSequence {
+
+    /**
+     * the frames a player wants in memory and how many of them are loaded
+     */
+    static final class Window {
+        final ISPlayer player;
+        // pinned frame indices
+        final BitSet frames = new BitSet();
+        // number of pinned frames which are loaded
+        volatile int loaded;
+        // number of pinned frames
+        volatile int toLoad;
+        // number of pinned frames evicted to keep within the memory budget (decoded again when needed)
+        volatile int evicted;
+        // number of pinned frames which couldn't be loaded
+        volatile int failed;
+        // where the player will start once it switches to this window's sequence (pre-roll), -1 once it has
+        volatile int cueFrame = -1;
+
+        Window(ISPlayer player){
+            this.player = player;
+        }
+
+        /**
+         * returns the frame decoding is prioritised around: the player's playhead, or the frame it will start from
+         * @return
+         */
+        int currentFrame(){
+            int cue = cueFrame;
+            return cue >= 0 ? cue : player.currentFrame();
+        }
+
+        /**
+         * returns the direction the playhead moves in: 1 forward, -1 in reverse
+         * @return
+         */
+        int direction(){
+            if(cueFrame >= 0) return player.getRate() < 0 ? -1 : 1;
+            return player.direction();
+        }
+
+        /**
+         * returns true if the playhead wraps around from one end of the sequence to the other
+         * @return
+         */
+        boolean wrapsAround(){
+            return player.wrapsAround();
+        }
+    }
+
+    /**
+     * an image shown by several identical frames
+     */
+    private static final class Shared {
+        final PImage frame;
+        // frames showing it
+        final BitSet indices = new BitSet();
+
+        Shared(PImage frame){
+            this.frame = frame;
+        }
+    }
+
+    // open sequences by key
+    private static final HashMap<Object,ISSequence> sequences = new HashMap<>();
+
+    // registry key: location and storage options, or the array of images
+    private final Object key;
+    // where frames are decoded from (null for images passed to ISPlayer.init(PImage[]))
+    private final ISFrameSource source;
+    // frames (null until decoded or once no player pins them), replaced by a longer array when frames are appended
+    volatile PImage[] frames;
+    // total number of frames (grows when watching a folder)
+    volatile int numFrames;
+    // store frames as tile deltas of a keyframe every this many frames (0 = off)
+    final int keyframeInterval;
+    // store frames as palette indices or packed RGB when possible
+    private final boolean compact;
+    // applied to each frame as it loads (null for none)
+    private final ISFrameTransform transform;
+    // images passed to ISPlayer.init(PImage[]) waiting to be transformed (null without a transform)
+    private PImage[] originals;
+    // windows of the players showing this sequence
+    private final ArrayList<Window> windows = new ArrayList<>();
+    // number of windows pinning each frame
+    private int[] pins;
+    // frames waiting for a decode thread
+    private final BitSet pendingFrames = new BitSet();
+    // delta frames waiting for their keyframe to decode
+    private final BitSet deferredFrames = new BitSet();
+    // pinned frames which couldn't be decoded (tried again once no window pins them any more)
+    private final BitSet failedFrames = new BitSet();
+    // images passed to ISPlayer.init(PImage[]) which are still loading (e.g. requested with requestImage())
+    private final BitSet unloadedFrames = new BitSet();
+    // decoding metrics
+    final ISMetrics metrics = new ISMetrics();
+    // memory taken by each frame in memory (as counted in the metrics)
+    private long[] frameBytes;
+    // memory the source holds for all the frames (e.g. a decoded sprite sheet), as counted in the metrics
+    private long sourceBytes;
+    // when each frame was last loaded or shown (see ISMemory.tick())
+    private long[] stamps;
+    // pinned frames evicted to keep within the memory budget
+    private final BitSet evictedFrames = new BitSet();
+    // number of evicted frames, read without the lock
+    private volatile int numEvicted;
+    // images of the frames in memory by content hash, so identical frames share one
+    private final HashMap<Long,Shared> contents = new HashMap<>();
+    // content hash of each frame registered in contents
+    private long[] hashes;
+    private final BitSet hashedFrames = new BitSet();
+
+    private ISSequence(Object key, ISFrameSource source, PImage[] frames, boolean compact, int keyframeInterval, ISFrameTransform transform){
+        this.key = key;
+        this.source = source;
+        this.frames = frames;
+        this.numFrames = frames.length;
+        this.compact = compact;
+        this.keyframeInterval = keyframeInterval;
+        this.transform = transform;
+        this.pins = new int[numFrames];
+        this.frameBytes = new long[numFrames];
+        this.stamps = new long[numFrames];
+        this.hashes = new long[numFrames];
+    }
+
+    /**
+     * attach a player's window to the sequence in a folder (or pack file),
+     * opening it unless another player already did with the same storage options
+     * @param parent
+     * @param location - folder, pack file, sprite sheet descriptor or archive
+     * @param compact - store frames as palette indices or packed RGB when possible
+     * @param keyframeInterval - store frames as tile deltas of a keyframe every this many frames (0 = off)
+     * @param resampler - downscales frames as they're decoded (null for full size frames)
+     * @param manifest - list a folder's frames from its manifest (written on the first scan)
+     * @param naturalOrder - sort file names by the value of their numbers (frame2 before frame10)
+     * @param watch - append frames written to the folder from now on
+     * @param transform - applied to each frame as it loads (null for none)
+     * @param window - the attaching player's (empty) window
+     * @return the shared sequence
+     * @throws IOException if the pack file, sprite sheet descriptor or archive can't be read
+     */
+    static ISSequence open(PApplet parent, File location, boolean compact, int keyframeInterval, ISResampler resampler, boolean manifest, boolean naturalOrder, boolean watch, ISFrameTransform transform, Window window) throws IOException {
+        if(keyframeInterval <= 1) keyframeInterval = 0;
+        // only folders grow
+        watch &= location.isDirectory();
+        // transforms are told apart by identity
+        Object key = Arrays.asList(location.getCanonicalPath() + "?compact=" + compact + "&keyframes=" + keyframeInterval + "&size=" + resampler + "&natural=" + naturalOrder + "&watch=" + watch, transform);
+        synchronized (sequences) {
+            ISSequence sequence = sequences.get(key);
+            if(sequence != null){
+                sequence.attach(window);
+                return sequence;
+            }
+        }
+
+        // open the source without holding the registry: listing a large folder or reading an archive's index
+        // mustn't hold up the players initialised, disposed or switching sequences meanwhile
+        ISFrameSource source;
+        if(location.isFile() && location.getName().toLowerCase().endsWith("." + ISAtlasSource.EXTENSION)){
+            source = new ISAtlasSource(parent, location, resampler);
+        }else if(ISArchiveSource.isArchive(location)){
+            source = new ISArchiveSource(location, ISManifest.order(naturalOrder), resampler);
+        }else if(location.isFile()){
+            source = new ISPackSource(location, resampler);
+        }else{
+            source = new ISFolderSource(parent, manifest ? ISManifest.load(location, ISManifest.order(naturalOrder)) : ISManifest.scan(location, ISManifest.order(naturalOrder)), resampler);
+        }
+        ISSequence opened = new ISSequence(key, source, new PImage[source.size()], compact, keyframeInterval, transform);
+        if(watch) ISWatcher.watch(opened, location, (ISFolderSource)source);
+
+        ISSequence sequence;
+        synchronized (sequences) {
+            sequence = sequences.get(key);
+            if(sequence == null){
+                sequence = opened;
+                sequences.put(key, sequence);
+            }
+            sequence.attach(window);
+        }
+        // another player opened the same sequence meanwhile: share it and drop this source
+        if(sequence != opened && watch) ISWatcher.unwatch(opened);
+        return sequence;
+    }
+
+    /**
+     * attach a player's window to the sequence of an array of images,
+     * shared with the other players initialised with the same array (and transform)
+     * @param images
+     * @param transform - applied to a copy of each image once it's loaded, on the decode threads (null for none)
+     * @param window - the attaching player's (empty) window
+     * @return the shared sequence
+     */
+    static ISSequence wrap(PImage[] images, ISFrameTransform transform, Window window){
+        synchronized (sequences) {
+            // arrays and transforms are keyed by identity
+            Object key = transform != null ? Arrays.asList(images, transform) : images;
+            ISSequence sequence = sequences.get(key);
+            if(sequence == null){
+                if(transform != null){
+                    sequence = new ISSequence(key, null, new PImage[images.length], false, 0, transform);
+                    sequence.originals = images.clone();
+                }else{
+                    sequence = new ISSequence(key, null, images.clone(), false, 0, null);
+                }
+                // images may still be loading (e.g. requestImage()), they're checked as players update
+                sequence.unloadedFrames.set(0, sequence.numFrames);
+                sequences.put(key, sequence);
+            }
+            sequence.attach(window);
+            return sequence;
+        }
+    }
+
+    /**
+     * returns the sequences open at the moment
+     * @return
+     */
+    static ArrayList<ISSequence> openSequences(){
+        synchronized (sequences) {
+            return new ArrayList<>(sequences.values());
+        }
+    }
+
+    private synchronized void attach(Window window){
+        windows.add(window);
+    }
+
+    /**
+     * detach a player's window: unpin its frames and release the sequence if it was the last one
+     * @param window
+     */
+    void detach(Window window){
+        boolean released;
+        synchronized (sequences) {
+            synchronized (this) {
+                unpin(window, new BitSet());
+                windows.remove(window);
+                released = windows.isEmpty();
+                if(released){
+                    sequences.remove(key);
+                    for(int i = 0; i < numFrames; i++) release(i);
+                    metrics.frameBytes.addAndGet(-sourceBytes);
+                    ISMemory.add(-sourceBytes);
+                    sourceBytes = 0;
+                    pendingFrames.clear();
+                    deferredFrames.clear();
+                    evictedFrames.clear();
+                    numEvicted = 0;
+                    contents.clear();
+                }
+            }
+        }
+        // frames being decoded are discarded as they're no longer pinned
+        if(released){
+            ISDecoder.cancel(this);
+            ISWatcher.unwatch(this);
+        }
+    }
+
+    /**
+     * called by the folder watcher once frames were appended to the source:
+     * make room for them and let the players pin them
+     */
+    void appended(){
+        ArrayList<ISPlayer> players = new ArrayList<>();
+        synchronized (this) {
+            int size = source.size();
+            if(size <= numFrames) return;
+            // frames first: players check indices against numFrames before reading frames
+            frames = Arrays.copyOf(frames, size);
+            pins = Arrays.copyOf(pins, size);
+            frameBytes = Arrays.copyOf(frameBytes, size);
+            stamps = Arrays.copyOf(stamps, size);
+            hashes = Arrays.copyOf(hashes, size);
+            numFrames = size;
+            for(Window window : windows){
+                players.add(window.player);
+            }
+        }
+        for(ISPlayer player : players){
+            player.framesAppended(this);
+        }
+    }
+
+    /**
+     * change the frames a player wants in memory: frames which weren't pinned yet are queued for decoding
+     * (the ones closest to a playhead first) and frames no window pins any more are released
+     * @param window
+     * @param wanted - frame indices, delta frames' keyframes are added to it
+     */
+    synchronized void pin(Window window, BitSet wanted){
+        // delta frames need their keyframes
+        if(keyframeInterval > 1){
+            for(int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)){
+                wanted.set(keyframeOf(i));
+            }
+        }
+        unpin(window, wanted);
+
+        BitSet pinned = window.frames;
+        int loaded = window.loaded;
+        for(int i = wanted.nextSetBit(0); i >= 0 && i < numFrames; i = wanted.nextSetBit(i + 1)){
+            if(pinned.get(i)) continue;
+            // reload evicted frames another player pins (before pinning: only the windows already pinning it count it as evicted)
+            if(evictedFrames.get(i)) restore(i);
+            pinned.set(i);
+            if(failedFrames.get(i)) window.failed++;
+            if(isLoaded(i)){
+                loaded++;
+            }else if(pins[i] == 0 && isDecodable(i)){
+                pendingFrames.set(i);
+            }
+            pins[i]++;
+        }
+        window.loaded = loaded;
+        window.toLoad = pinned.cardinality();
+    }
+
+    /**
+     * unpin the frames of a window which aren't wanted any more, call while holding this sequence's lock
+     * @param window
+     * @param wanted
+     */
+    private void unpin(Window window, BitSet wanted){
+        BitSet pinned = window.frames;
+        int loaded = window.loaded;
+        for(int i = pinned.nextSetBit(0); i >= 0; i = pinned.nextSetBit(i + 1)){
+            if(wanted.get(i)) continue;
+            pinned.clear(i);
+            if(isLoaded(i)) loaded--;
+            if(evictedFrames.get(i)) window.evicted--;
+            if(failedFrames.get(i)) window.failed--;
+            // images passed to ISPlayer.init(PImage[]) can't be loaded again (unless they're transformed copies)
+            if(--pins[i] == 0 && (source != null || originals != null)){
+                if(frames[i] != null) metrics.framesEvicted.incrementAndGet();
+                release(i);
+                pendingFrames.clear(i);
+                deferredFrames.clear(i);
+                failedFrames.clear(i);
+                if(evictedFrames.get(i)){
+                    evictedFrames.clear(i);
+                    numEvicted--;
+                }
+            }
+        }
+        window.loaded = loaded;
+        window.toLoad = pinned.cardinality();
+    }
+
+    /**
+     * remove a frame from memory, call while holding this sequence's lock
+     * @param index
+     */
+    private void release(int index){
+        unshare(index);
+        frames[index] = null;
+        metrics.frameBytes.addAndGet(-frameBytes[index]);
+        ISMemory.add(-frameBytes[index]);
+        frameBytes[index] = 0;
+    }
+
+    /**
+     * count a frame now in memory, call while holding this sequence's lock
+     * @param index
+     */
+    private void hold(int index){
+        // an image shared with identical frames is counted once
+        Shared shared = hashedFrames.get(index) ? contents.get(hashes[index]) : null;
+        long bytes = shared != null && shared.indices.cardinality() > 1 ? 0 : ISMetrics.bytes(frames[index]);
+        metrics.frameBytes.addAndGet(bytes - frameBytes[index]);
+        ISMemory.add(bytes - frameBytes[index]);
+        frameBytes[index] = bytes;
+        stamps[index] = ISMemory.tick();
+    }
+
+    /**
+     * count the memory the source holds for all the frames once it's known (e.g. once the sprite sheet is decoded),
+     * call while holding this sequence's lock
+     */
+    private void holdSource(){
+        long bytes = source != null ? source.sharedBytes() : 0;
+        if(bytes == sourceBytes) return;
+        metrics.frameBytes.addAndGet(bytes - sourceBytes);
+        ISMemory.add(bytes - sourceBytes);
+        sourceBytes = bytes;
+    }
+
+    /**
+     * register a frame's image under its content hash (it's the image of identical frames decoded from now on),
+     * call while holding this sequence's lock, before hold()
+     * @param index
+     * @param hash
+     */
+    private void share(int index, long hash){
+        Shared shared = contents.get(hash);
+        if(shared == null){
+            shared = new Shared(frames[index]);
+            contents.put(hash, shared);
+        }
+        shared.indices.set(index);
+        hashes[index] = hash;
+        hashedFrames.set(index);
+    }
+
+    /**
+     * unregister a frame from the image it shares (before it's released or replaced),
+     * another frame showing the image carries its memory from now on. Call while holding this sequence's lock
+     * @param index
+     */
+    private void unshare(int index){
+        if(!hashedFrames.get(index)) return;
+        hashedFrames.clear(index);
+        Shared shared = contents.get(hashes[index]);
+        if(shared == null) return;
+        shared.indices.clear(index);
+        if(shared.indices.isEmpty()){
+            contents.remove(hashes[index]);
+        }else if(frameBytes[index] > 0){
+            frameBytes[shared.indices.nextSetBit(0)] = frameBytes[index];
+            frameBytes[index] = 0;
+        }
+    }
+
+    /**
+     * returns the image of an identical frame in memory, if there is one
+     * @param frame - decoded ARGB frame
+     * @param hash - its content hash
+     * @return the shared image or null
+     */
+    private PImage findIdentical(PImage frame, long hash){
+        PImage identical;
+        synchronized (this) {
+            Shared shared = contents.get(hash);
+            identical = shared != null ? shared.frame : null;
+        }
+        if(identical == null || identical.width != frame.width || identical.height != frame.height || identical.format != frame.format) return null;
+        // compare the pixels outside of the lock, a hash collision would show the wrong frame
+        int[] pixels = identical.pixels;
+        if(pixels == null && identical instanceof ISEncodedFrame){
+            // compact frames are expanded to compare them
+            pixels = new int[identical.width * identical.height];
+            ((ISEncodedFrame)identical).expand(pixels);
+        }
+        if(pixels == null || !Arrays.equals(pixels, frame.pixels)) return null;
+        return identical;
+    }
+
+    /**
+     * returns a 64 bit hash of a frame's pixels and size
+     * @param frame
+     * @return
+     */
+    private static long contentHash(PImage frame){
+        // FNV-1a over the pixels, then a final mix
+        long hash = 0xCBF29CE484222325L ^ ((long)frame.width << 32 | frame.height);
+        for(int pixel : frame.pixels){
+            hash = (hash ^ pixel) * 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * returns a frame, safely published by the decode thread which stored it:
+     * players read frames through this rather than the frames array, whose elements aren't volatile
+     * @param index
+     * @return the frame or null if it isn't in memory (or the index is out of range)
+     */
+    synchronized PImage frame(int index){
+        return index >= 0 && index < numFrames ? frames[index] : null;
+    }
+
+    /**
+     * record that a player shows a frame, so it's evicted last (see ISMemory).
+     * Not synchronized: it's called for every frame shown and the order only needs to be approximate
+     * @param index
+     */
+    void touch(int index){
+        long[] stamps = this.stamps;
+        if(index >= 0 && index < stamps.length) stamps[index] = ISMemory.tick();
+    }
+
+    /**
+     * returns true if frames were evicted to keep within the memory budget and not reloaded yet
+     * @return
+     */
+    boolean hasEvictedFrames(){
+        return numEvicted > 0;
+    }
+
+    /**
+     * reload the evicted frames a player is about to show
+     * @param wanted - frame indices
+     * @return true if frames were queued for decoding
+     */
+    synchronized boolean demand(BitSet wanted){
+        boolean queued = false;
+        for(int i = wanted.nextSetBit(0); i >= 0 && i < numFrames; i = wanted.nextSetBit(i + 1)){
+            if(evictedFrames.get(i)){
+                restore(i);
+                queued = true;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * queue an evicted frame (and its keyframe) for decoding again, call while holding this sequence's lock
+     * @param index
+     */
+    private void restore(int index){
+        evictedFrames.clear(index);
+        numEvicted--;
+        pendingFrames.set(index);
+        for(Window window : windows){
+            if(window.frames.get(index)) window.evicted--;
+        }
+        int key = keyframeOf(index);
+        if(key != index && evictedFrames.get(key)) restore(key);
+    }
+
+    /**
+     * returns true if a frame can be evicted to keep within the memory budget: it's in memory, can be decoded again,
+     * holds memory of its own (not a view of a sprite sheet) and, for a keyframe, none of its delta frames are in memory.
+     * Call while holding this sequence's lock
+     * @param index
+     * @return
+     */
+    private boolean isEvictable(int index){
+        if(!isLoaded(index) || (source == null && originals == null)) return false;
+        // sprite sheet frames reference the atlas, which stays decoded while the sequence is open
+        if(frames[index] instanceof ISAtlasFrame && frames[index].pixels == null) return false;
+        if(keyframeInterval > 1 && keyframeOf(index) == index){
+            int end = Math.min(numFrames, index + keyframeInterval);
+            for(int i = index + 1; i < end; i++){
+                if(frames[i] != null) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * add the frames which could be evicted to keep within the memory budget to a list
+     * @param candidates
+     */
+    synchronized void collectEvictable(ArrayList<ISMemory.Candidate> candidates){
+        for(int i = 0; i < numFrames; i++){
+            if(isEvictable(i)) candidates.add(new ISMemory.Candidate(this, i, stamps[i]));
+        }
+    }
+
+    /**
+     * evict a frame to keep within the memory budget, unless it was used since it was picked or a player shows it:
+     * the windows pinning it count it as evicted until a playhead reaches it
+     * @param index
+     * @param stamp - when the frame was last used, as picked
+     * @param evicted - players to notify so far (may be null)
+     * @return players to notify
+     */
+    synchronized ArrayList<ISPlayer> evict(int index, long stamp, ArrayList<ISPlayer> evicted){
+        if(index >= numFrames || stamps[index] != stamp || !isEvictable(index)) return evicted;
+        for(Window window : windows){
+            if(window.currentFrame() == index) return evicted;
+        }
+        release(index);
+        metrics.framesReclaimed.incrementAndGet();
+        if(pins[index] == 0) return evicted;
+
+        evictedFrames.set(index);
+        numEvicted++;
+        for(Window window : windows){
+            if(window.frames.get(index)){
+                window.loaded--;
+                window.evicted++;
+                if(evicted == null) evicted = new ArrayList<>();
+                if(!evicted.contains(window.player)) evicted.add(window.player);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * returns true if the decode threads can produce a frame: it has a source,
+     * or it's an image passed to ISPlayer.init(PImage[]) which loaded and waits to be transformed.
+     * Call while holding this sequence's lock
+     * @param index
+     * @return
+     */
+    private boolean isDecodable(int index){
+        return source != null || (originals != null && !unloadedFrames.get(index));
+    }
+
+    /**
+     * returns true if a frame is in memory and ready to show, call while holding this sequence's lock
+     * @param index
+     * @return
+     */
+    private boolean isLoaded(int index){
+        return frames[index] != null && !unloadedFrames.get(index);
+    }
+
+    /**
+     * returns the width a frame will have once decoded, if it's known without decoding it
+     * (pack files and folders with a manifest)
+     * @param index
+     * @return width or 0 if unknown
+     */
+    int frameWidth(int index){
+        // transforms may change the size
+        return source != null && transform == null && index >= 0 && index < numFrames ? source.width(index) : 0;
+    }
+
+    /**
+     * returns the height a frame will have once decoded, if it's known without decoding it
+     * (pack files and folders with a manifest)
+     * @param index
+     * @return height or 0 if unknown
+     */
+    int frameHeight(int index){
+        return source != null && transform == null && index >= 0 && index < numFrames ? source.height(index) : 0;
+    }
+
+    /**
+     * wait for a frame to be in memory (see ISPlayer.advance()): returns right away if it's loaded,
+     * failed to load or nothing will load it (not pinned, or an image passed to ISPlayer.init(PImage[]) which failed)
+     * @param index
+     * @param timeout - milliseconds
+     * @return false if the frame is still on its way after the timeout (true if the thread was interrupted)
+     */
+    synchronized boolean awaitFrame(int index, long timeout){
+        if(!isSettled(index)){
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return isSettled(index);
+    }
+
+    /**
+     * returns true if a frame won't change any more until the frames to load change, call while holding this sequence's lock
+     * @param index
+     * @return
+     */
+    private boolean isSettled(int index){
+        if(index < 0 || index >= numFrames || isLoaded(index) || failedFrames.get(index) || pins[index] == 0) return true;
+        // requestImage() sets the width to -1 when loading fails
+        PImage image = originals != null ? originals[index] : frames[index];
+        return unloadedFrames.get(index) && (image == null || image.width < 0);
+    }
+
+    /**
+     * returns true if all the frames a window pins are loaded (or failed to): its player can switch to it without waiting.
+     * Frames evicted meanwhile (see ISMemory) are queued for decoding again, call ISDecoder.request() if it returns false
+     * @param window
+     * @return
+     */
+    synchronized boolean isPrerolled(Window window){
+        BitSet pinned = window.frames;
+        boolean prerolled = true;
+        for(int i = pinned.nextSetBit(0); i >= 0; i = pinned.nextSetBit(i + 1)){
+            if(evictedFrames.get(i)) restore(i);
+            if(!isLoaded(i) && !failedFrames.get(i)) prerolled = false;
+        }
+        return prerolled;
+    }
+
+    /**
+     * returns true if a frame is in memory and ready to show
+     * @param index
+     * @return
+     */
+    synchronized boolean isFrameLoaded(int index){
+        return index >= 0 && index < numFrames && isLoaded(index);
+    }
+
+    /**
+     * check which of the images passed to ISPlayer.init(PImage[]) which were still loading have loaded since
+     * (only the ones still loading are checked, each one until it loads) and notify the players pinning them
+     */
+    void checkLoaded(){
+        ArrayList<ISPlayer> progressed = null;
+        boolean transforming = false;
+        synchronized (this) {
+            PImage[] images = originals != null ? originals : frames;
+            for(int i = unloadedFrames.nextSetBit(0); i >= 0; i = unloadedFrames.nextSetBit(i + 1)){
+                // frames[i].isLoaded() sometimes returns true even before the image has fully initialized, using dimensions instead
+                if(images[i] != null && images[i].width > 0 && images[i].height > 0) {
+                    unloadedFrames.clear(i);
+                    if(originals != null){
+                        // loaded once transformed
+                        if(pins[i] > 0){
+                            pendingFrames.set(i);
+                            transforming = true;
+                        }
+                    }else{
+                        hold(i);
+                        progressed = loaded(i, progressed);
+                        notifyAll();
+                    }
+                }
+            }
+        }
+        if(transforming) ISDecoder.request(this);
+        notifyProgress(progressed);
+        if(progressed != null) ISMemory.reclaim();
+    }
+
+    /**
+     * count a frame which just loaded in the windows pinning it, call while holding this sequence's lock
+     * @param index
+     * @param progressed - players to notify so far (may be null)
+     * @return players to notify
+     */
+    private ArrayList<ISPlayer> loaded(int index, ArrayList<ISPlayer> progressed){
+        for(Window window : windows){
+            if(window.frames.get(index)){
+                window.loaded++;
+                if(progressed == null) progressed = new ArrayList<>();
+                if(!progressed.contains(window.player)) progressed.add(window.player);
+            }
+        }
+        return progressed;
+    }
+
+    /**
+     * count a frame which couldn't be loaded in the windows pinning it, call while holding this sequence's lock
+     * @param index
+     * @return players to notify (may be null)
+     */
+    private ArrayList<ISPlayer> failed(int index){
+        ArrayList<ISPlayer> progressed = null;
+        for(Window window : windows){
+            if(window.frames.get(index)){
+                window.failed++;
+                if(progressed == null) progressed = new ArrayList<>();
+                if(!progressed.contains(window.player)) progressed.add(window.player);
+            }
+        }
+        return progressed;
+    }
+
+    /**
+     * let players update their loading state and dispatch events, outside of this sequence's lock
+     * @param progressed - may be null
+     */
+    private static void notifyProgress(ArrayList<ISPlayer> progressed){
+        if(progressed == null) return;
+        for(ISPlayer player : progressed){
+            player.framesLoaded();
+        }
+    }
+
+    /**
+     * find the pending frame closest to a playhead in the direction it's moving:
+     * the first one at or ahead of it (wrapping around when looping), otherwise the closest one behind it
+     * @param current - playhead
+     * @param direction - 1 when playing forward, -1 in reverse
+     * @param looping - true if the playhead wraps around the ends of the sequence
+     * @return frame index or -1 if there's nothing left to decode
+     */
+    private int nextPendingFrame(int current, int direction, boolean looping){
+        if(pendingFrames.isEmpty()) return -1;
+
+        if(direction < 0){
+            int ahead = pendingFrames.previousSetBit(current);
+            if(ahead >= 0) return ahead;
+
+            return looping ? pendingFrames.previousSetBit(numFrames - 1) : pendingFrames.nextSetBit(current);
+        }
+
+        int ahead = pendingFrames.nextSetBit(current);
+        if(ahead >= 0) return ahead;
+
+        return looping ? pendingFrames.nextSetBit(0) : pendingFrames.previousSetBit(current);
+    }
+
+    /**
+     * how far a frame is from a playhead in the direction it's moving (frames behind the playhead rank after all frames ahead of it)
+     * @param index
+     * @param current
+     * @param direction - 1 when playing forward, -1 in reverse
+     * @param looping - true if the playhead wraps around the ends of the sequence
+     * @return distance in frames
+     */
+    private int distance(int index, int current, int direction, boolean looping){
+        if(direction < 0){
+            if(index <= current) return current - index;
+            return looping ? numFrames + current - index : numFrames + index - current;
+        }
+        if(index >= current) return index - current;
+        return looping ? numFrames - current + index : numFrames + current - index;
+    }
+
+    /**
+     * called by the decoder: how far is the next frame to decode from the closest playhead
+     * @return distance in frames or -1 if there's nothing left to decode
+     */
+    synchronized int pendingFrameDistance(){
+        int nearest = -1;
+        for(Window window : windows){
+            int current = window.currentFrame();
+            int direction = window.direction();
+            boolean looping = window.wrapsAround();
+            int index = nextPendingFrame(current, direction, looping);
+            if(index < 0) return -1;
+
+            int distance = distance(index, current, direction, looping);
+            if(nearest < 0 || distance < nearest) nearest = distance;
+        }
+        return nearest;
+    }
+
+    /**
+     * called by the decoder: take the next frame to decode, closest to any playhead, off the pending list
+     * @return frame index or -1 if there's nothing left to decode
+     */
+    synchronized int claimPendingFrame(){
+        // playhead closest to a pending frame
+        int current = 0;
+        int direction = 1;
+        boolean looping = false;
+        int nearest = -1;
+        for(Window window : windows){
+            int playhead = window.currentFrame();
+            int playheadDirection = window.direction();
+            boolean playheadLooping = window.wrapsAround();
+            int index = nextPendingFrame(playhead, playheadDirection, playheadLooping);
+            if(index < 0) return -1;
+
+            int distance = distance(index, playhead, playheadDirection, playheadLooping);
+            if(nearest < 0 || distance < nearest){
+                nearest = distance;
+                current = playhead;
+                direction = playheadDirection;
+                looping = playheadLooping;
+            }
+        }
+
+        int index;
+        while((index = nextPendingFrame(current, direction, looping)) >= 0){
+            pendingFrames.clear(index);
+
+            int key = keyframeOf(index);
+            // not a delta frame, or its keyframe is available (or won't ever be)
+            if(key == index || frames[key] != null || failedFrames.get(key) || pins[key] == 0) return index;
+            // decode the keyframe first
+            if(pendingFrames.get(key)){
+                pendingFrames.clear(key);
+                pendingFrames.set(index);
+                return key;
+            }
+            // the keyframe is being decoded: wait for it and pick another frame
+            deferredFrames.set(index);
+        }
+        return -1;
+    }
+
+    /**
+     * returns the keyframe a frame is encoded against
+     * (the frame itself if it's a keyframe or delta frames are off)
+     * @param index
+     * @return
+     */
+    int keyframeOf(int index){
+        return keyframeInterval > 1 ? index - index % keyframeInterval : index;
+    }
+
+    /**
+     * called by a decode thread: load a claimed frame and store it,
+     * unless no player pins it any more
+     * @param index
+     */
+    void decodeFrame(int index){
+        synchronized (this) {
+            if(!isDecodable(index) || pins[index] == 0) return;
+        }
+
+        long start = System.nanoTime();
+        PImage frame;
+        try{
+            // images passed to ISPlayer.init(PImage[]) are left untouched
+            frame = source != null ? source.load(index) : originals[index].copy();
+        }catch(RuntimeException e){
+            // corrupt data fails the frame like an unreadable image, rather than leaving it pending forever
+            System.err.println("error loading frame " + index + ": " + e);
+            frame = null;
+        }
+        if(transform != null && frame != null && frame.width > 0 && frame.height > 0){
+            try{
+                // encoded frames (e.g. sprite sheet regions) are expanded for the transform
+                frame.loadPixels();
+                frame = transform.transform(frame, index);
+            }catch(RuntimeException e){
+                System.err.println("frame transform failed on frame " + index + ": " + e);
+                frame = null;
+            }
+        }
+        if(frame == null || frame.width <= 0 || frame.height <= 0){
+            System.err.println("couldn't load frame: " + (source != null ? source.describe(index) : String.valueOf(index)));
+            metrics.framesFailed.incrementAndGet();
+            // delta frames waiting for this keyframe are stored in full instead
+            boolean released;
+            ArrayList<ISPlayer> progressed = null;
+            synchronized (this) {
+                if(pins[index] == 0) return;
+                if(!failedFrames.get(index)){
+                    failedFrames.set(index);
+                    progressed = failed(index);
+                }
+                released = releaseDeferredFrames(index);
+                // wake up players waiting for the frame (see awaitFrame())
+                notifyAll();
+            }
+            if(released) ISDecoder.request(this);
+            // failed frames count as done: players don't report loading forever
+            notifyProgress(progressed);
+            return;
+        }
+        // frames identical to one in memory (e.g. animated on twos, held poses) share its image
+        boolean hashed = frame.pixels != null && frame.pixels.length == frame.width * frame.height;
+        long hash = hashed ? contentHash(frame) : 0;
+        PImage identical = hashed ? findIdentical(frame, hash) : null;
+        PImage decoded = frame;
+        if(identical != null){
+            frame = identical;
+        }
+        // store the frame as the tiles which changed since its keyframe
+        int key = keyframeOf(index);
+        if(key != index && identical == null){
+            PImage keyframe;
+            synchronized (this) {
+                keyframe = frames[key];
+            }
+            if(keyframe != null){
+                frame = ISDeltaFrame.encode(frame, keyframe);
+            }
+        }
+        if(compact && identical == null && !(frame instanceof ISDeltaFrame)){
+            frame = ISCompactFrame.compact(frame);
+        }
+
+        metrics.decoded(System.nanoTime() - start);
+        metrics.framesDecoded.incrementAndGet();
+
+        boolean released;
+        ArrayList<ISPlayer> progressed = null;
+        synchronized (this) {
+            if(pins[index] == 0) return;
+            if(frames[index] == null) progressed = loaded(index, null);
+            unshare(index);
+            if(identical != null){
+                Shared shared = contents.get(hash);
+                if(shared != null && shared.frame == identical){
+                    metrics.framesShared.incrementAndGet();
+                }else{
+                    // the identical frames were released meanwhile: keep this one's own image
+                    frame = decoded;
+                }
+            }
+            frames[index] = frame;
+            // delta frames depend on their keyframe, they're never shared
+            if(hashed && !(frame instanceof ISDeltaFrame)) share(index, hash);
+            hold(index);
+            holdSource();
+            released = key == index && releaseDeferredFrames(index);
+            notifyAll();
+        }
+        if(released) ISDecoder.request(this);
+        // progress is tracked as frames arrive, events fire right away
+        notifyProgress(progressed);
+        ISMemory.reclaim();
+    }
+
+    /**
+     * make the delta frames waiting for a keyframe pending again, call while holding this sequence's lock
+     * @param key - keyframe index
+     * @return true if any frames were waiting
+     */
+    private boolean releaseDeferredFrames(int key){
+        if(keyframeInterval <= 1) return false;
+
+        boolean released = false;
+        int end = Math.min(numFrames, key + keyframeInterval);
+        for(int i = deferredFrames.nextSetBit(key); i >= 0 && i < end; i = deferredFrames.nextSetBit(i + 1)){
+            deferredFrames.clear(i);
+            pendingFrames.set(i);
+            released = true;
+        }
+        return released;
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.hirschandmann.image;
+
+/**
+ * Snapshot of an image sequence player's loading and playback metrics (see ISPlayer.getStats()),
+ * to tell whether stutters come from decoding, the playback thread waking up late or the sketch drawing slowly.
+ * Decoding metrics belong to the sequence, shared by all players showing it.
+ * Durations are in milliseconds, counters since the sequence was loaded (or the player's stats were reset).
+ */
+public class ISStats {
+
+    private final long framesDecoded;
+    private final long framesFailed;
+    private final long framesEvicted;
+    private final long framesReclaimed;
+    private final long framesShared;
+    private final double decodeTime;
+    private final double maxDecodeTime;
+    private final long[] decodeHistogram;
+    private final long frameBytes;
+    private final long bufferBytes;
+    private final long framesAdvanced;
+    private final long framesDropped;
+    private final long framesLate;
+    private final double targetFrameInterval;
+    private final double frameInterval;
+    private final double maxFrameInterval;
+    private final double oversleep;
+    private final double maxOversleep;
+    private final double drawInterval;
+    private final double maxDrawInterval;
+    private final double timeToFirstFrame;
+
+    ISStats(ISMetrics playback, ISMetrics decoding, long bufferBytes, long targetFrameInterval){
+        framesDecoded = decoding.framesDecoded.get();
+        framesFailed = decoding.framesFailed.get();
+        framesEvicted = decoding.framesEvicted.get();
+        framesReclaimed = decoding.framesReclaimed.get();
+        framesShared = decoding.framesShared.get();
+        decodeTime = mean(decoding.decodeTimes);
+        maxDecodeTime = millis(decoding.decodeTimes.max.get());
+        decodeHistogram = new long[ISMetrics.DECODE_BUCKETS];
+        for(int i = 0; i < decodeHistogram.length; i++){
+            decodeHistogram[i] = decoding.decodeHistogram.get(i);
+        }
+        frameBytes = decoding.frameBytes.get();
+        this.bufferBytes = bufferBytes;
+        framesAdvanced = playback.framesAdvanced.get();
+        framesDropped = playback.framesDropped.get();
+        framesLate = playback.framesLate.get();
+        this.targetFrameInterval = millis(targetFrameInterval);
+        frameInterval = mean(playback.frameIntervals);
+        maxFrameInterval = millis(playback.frameIntervals.max.get());
+        oversleep = mean(playback.oversleeps);
+        maxOversleep = millis(playback.oversleeps.max.get());
+        drawInterval = mean(playback.drawIntervals);
+        maxDrawInterval = millis(playback.drawIntervals.max.get());
+        long firstFrame = playback.timeToFirstFrame;
+        timeToFirstFrame = firstFrame < 0 ? -1 : millis(firstFrame);
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1e6;
+    }
+
+    private static double mean(ISMetrics.Durations durations){
+        long count = durations.count.get();
+        return count > 0 ? millis(durations.total.get()) / count : 0;
+    }
+
+    /**
+     * returns the number of frames of the sequence decoded so far (including frames decoded again after eviction)
+     * @return
+     */
+    public long getFramesDecoded(){
+        return framesDecoded;
+    }
+
+    /**
+     * returns the number of frames which couldn't be decoded
+     * @return
+     */
+    public long getFramesFailed(){
+        return framesFailed;
+    }
+
+    /**
+     * returns the number of decoded frames released because no player needed them any more (streaming)
+     * @return
+     */
+    public long getFramesEvicted(){
+        return framesEvicted;
+    }
+
+    /**
+     * returns the number of decoded frames released to keep within the memory budget (see ISPlayer.setMemoryBudget())
+     * @return
+     */
+    public long getFramesReclaimed(){
+        return framesReclaimed;
+    }
+
+    /**
+     * returns the number of decoded frames identical to a frame already in memory, which share its image instead of taking memory
+     * @return
+     */
+    public long getFramesShared(){
+        return framesShared;
+    }
+
+    /**
+     * returns the average time a frame took to decode
+     * @return milliseconds
+     */
+    public double getDecodeTime(){
+        return decodeTime;
+    }
+
+    /**
+     * returns the longest time a frame took to decode
+     * @return milliseconds
+     */
+    public double getMaxDecodeTime(){
+        return maxDecodeTime;
+    }
+
+    /**
+     * returns the decode time histogram: element i counts the frames which took 2^i to 2^(i+1) microseconds to decode
+     * (element 0 includes faster frames, the last element slower ones)
+     * @return
+     */
+    public long[] getDecodeHistogram(){
+        return decodeHistogram.clone();
+    }
+
+    /**
+     * returns the memory taken by the sequence's frames currently in memory
+     * @return bytes
+     */
+    public long getFrameBytes(){
+        return frameBytes;
+    }
+
+    /**
+     * returns the memory taken by the player's own buffers
+     * (frames copied with setCopyPixels() or expanded from compact or delta frames)
+     * @return bytes
+     */
+    public long getBufferBytes(){
+        return bufferBytes;
+    }
+
+    /**
+     * returns the number of frames the playback clock moved the playhead by
+     * @return
+     */
+    public long getFramesAdvanced(){
+        return framesAdvanced;
+    }
+
+    /**
+     * returns the number of frames skipped to catch up with wall-clock time (ISPlayer.DROP_FRAMES)
+     * @return
+     */
+    public long getFramesDropped(){
+        return framesDropped;
+    }
+
+    /**
+     * returns the number of frames shown after the next one was already due (ISPlayer.HOLD_FRAMES)
+     * @return
+     */
+    public long getFramesLate(){
+        return framesLate;
+    }
+
+    /**
+     * returns the frame interval of the playback rate
+     * @return milliseconds
+     */
+    public double getTargetFrameInterval(){
+        return targetFrameInterval;
+    }
+
+    /**
+     * returns the average time between frames shown by the playback clock
+     * @return milliseconds
+     */
+    public double getFrameInterval(){
+        return frameInterval;
+    }
+
+    /**
+     * returns the longest time between frames shown by the playback clock
+     * @return milliseconds
+     */
+    public double getMaxFrameInterval(){
+        return maxFrameInterval;
+    }
+
+    /**
+     * returns how late the playback thread woke up for an update on average
+     * @return milliseconds
+     */
+    public double getOversleep(){
+        return oversleep;
+    }
+
+    /**
+     * returns the latest the playback thread woke up for an update
+     * @return milliseconds
+     */
+    public double getMaxOversleep(){
+        return maxOversleep;
+    }
+
+    /**
+     * returns the average time between the sketch's draw() calls
+     * @return milliseconds
+     */
+    public double getDrawInterval(){
+        return drawInterval;
+    }
+
+    /**
+     * returns the longest time between the sketch's draw() calls
+     * @return milliseconds
+     */
+    public double getMaxDrawInterval(){
+        return maxDrawInterval;
+    }
+
+    /**
+     * returns the time from init() until the first frame was shown
+     * @return milliseconds or -1 if no frame was shown yet
+     */
+    public double getTimeToFirstFrame(){
+        return timeToFirstFrame;
+    }
+
+    /**
+     * String representation
+     */
+    public String toString(){
+        return String.format("[ISStats decoded=%d failed=%d evicted=%d reclaimed=%d shared=%d decode=%.2fms (max %.2fms) frameBytes=%d bufferBytes=%d"
+                + " advanced=%d dropped=%d late=%d interval=%.2fms/%.2fms (max %.2fms) oversleep=%.2fms (max %.2fms)"
+                + " draw=%.2fms (max %.2fms) firstFrame=%.2fms]",
+                framesDecoded, framesFailed, framesEvicted, framesReclaimed, framesShared, decodeTime, maxDecodeTime, frameBytes, bufferBytes,
+                framesAdvanced, framesDropped, framesLate, frameInterval, targetFrameInterval, maxFrameInterval, oversleep, maxOversleep,
+                drawInterval, maxDrawInterval, timeToFirstFrame);
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.hirschandmann.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folder watching thread shared by all image sequence players in a sketch (see ISPlayer.setWatching()).
+ * New files in watched folders are appended to their sequence once they're fully written
+ * (their size stopped changing and, for png and jpeg files, they end where the format says), in file name order:
+ * only the new frames are decoded.
+ * Files which sort before the last frame of the sequence (written out of order) are skipped.
+ */
+final class ISWatcher implements Runnable {
+
+    // how long a new file's size must stay the same before it's considered fully written (milliseconds)
+    static final long SETTLE_TIME = 500;
+
+    /**
+     * a watched folder and the new files waiting to settle
+     */
+    private static final class Watch {
+        final ISSequence sequence;
+        final ISFolderSource source;
+        final File dir;
+        WatchKey key;
+        // new files by absolute path, with their size when last checked (-1 if not checked yet)
+        final HashMap<String,Long> pending = new HashMap<>();
+
+        Watch(ISSequence sequence, ISFolderSource source, File dir){
+            this.sequence = sequence;
+            this.source = source;
+            this.dir = dir;
+        }
+    }
+
+    // watched folders by watch key and by sequence
+    private static final HashMap<WatchKey,Watch> keys = new HashMap<>();
+    private static final HashMap<ISSequence,Watch> watches = new HashMap<>();
+    // guards the watches and their pending files
+    private static final Object lock = new Object();
+    // file system events of all watched folders
+    private static WatchService service;
+    // watching thread
+    private static Thread thread;
+
+    private ISWatcher(){}
+
+    /**
+     * start appending the frames written to a sequence's folder
+     * @param sequence
+     * @param dir
+     * @param source - the sequence's frames
+     */
+    static void watch(ISSequence sequence, File dir, ISFolderSource source){
+        Watch watch = new Watch(sequence, source, dir);
+        // list the folder before taking the lock: unwatch() is called while players switch sequences
+        String[] paths = ISPlayer.listFrames(dir, source.order);
+        synchronized (lock) {
+            try {
+                if(service == null) service = FileSystems.getDefault().newWatchService();
+                watch.key = dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                System.err.println("couldn't watch " + dir.getAbsolutePath() + ": " + e.getLocalizedMessage());
+                return;
+            }
+            keys.put(watch.key, watch);
+            watches.put(sequence, watch);
+            // files written since the folder was listed
+            rescan(watch, paths);
+
+            if(thread == null){
+                thread = new Thread(new ISWatcher());
+                thread.setName("[ISPlayer - watcher]");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * stop watching a sequence's folder (does nothing if it isn't watched)
+     * @param sequence
+     */
+    static void unwatch(ISSequence sequence){
+        synchronized (lock) {
+            Watch watch = watches.remove(sequence);
+            if(watch == null) return;
+            keys.remove(watch.key);
+            watch.key.cancel();
+        }
+    }
+
+    /**
+     * look for frames which aren't in the sequence yet (when the folder was listed or events were lost),
+     * call while holding the lock
+     * @param watch
+     * @param paths - the folder's frames, listed without holding the lock
+     */
+    private static void rescan(Watch watch, String[] paths){
+        String last = watch.source.lastPath();
+        for(String path : paths){
+            if(last == null || watch.source.order.compare(path, last) > 0){
+                if(!watch.pending.containsKey(path)) watch.pending.put(path, -1L);
+            }
+        }
+    }
+
+    public void run() {
+        ArrayList<Watch> settled = new ArrayList<>();
+        while(true){
+            try {
+                // while files are settling check on them regularly, otherwise wait for events
+                boolean settling;
+                synchronized (lock) {
+                    settling = false;
+                    for(Watch watch : watches.values()){
+                        settling |= !watch.pending.isEmpty();
+                    }
+                }
+                WatchKey key = settling ? service.poll(SETTLE_TIME / 2, TimeUnit.MILLISECONDS) : service.take();
+                while(key != null){
+                    collect(key);
+                    key = service.poll();
+                }
+                // append outside of the lock
+                synchronized (lock) {
+                    settled.clear();
+                    for(Watch watch : watches.values()){
+                        if(settle(watch)) settled.add(watch);
+                    }
+                }
+                for(Watch watch : settled){
+                    watch.sequence.appended();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * queue the new files of a watched folder's events
+     * @param key
+     */
+    private static void collect(WatchKey key){
+        Watch overflowed = null;
+        synchronized (lock) {
+            Watch watch = keys.get(key);
+            for(WatchEvent<?> event : key.pollEvents()){
+                if(watch == null) continue;
+                // events were lost: list the folder again (outside of the lock)
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                    overflowed = watch;
+                    continue;
+                }
+                String name = ((Path)event.context()).getFileName().toString();
+                String path = new File(watch.dir, name).getAbsolutePath();
+                // frames already in the sequence being rewritten are ignored
+                if(!watch.pending.containsKey(path) && ISPlayer.isFrameFile(name) && !watch.source.contains(path)){
+                    watch.pending.put(path, -1L);
+                }
+            }
+            key.reset();
+        }
+        if(overflowed != null){
+            String[] paths = ISPlayer.listFrames(overflowed.dir, overflowed.source.order);
+            synchronized (lock) {
+                // unless it was unwatched meanwhile
+                if(watches.get(overflowed.sequence) == overflowed) rescan(overflowed, paths);
+            }
+        }
+    }
+
+    /**
+     * append the new files of a watched folder which are fully written, call while holding the lock
+     * @param watch
+     * @return true if frames were appended to the source (the sequence needs to know)
+     */
+    private static boolean settle(Watch watch){
+        if(watch.pending.isEmpty()) return false;
+
+        long now = System.currentTimeMillis();
+        String last = watch.source.lastPath();
+        Comparator<String> order = watch.source.order;
+        ArrayList<String> ready = new ArrayList<>();
+        // files which are still being written hold back the ones sorting after them
+        String writing = null;
+        Iterator<Map.Entry<String,Long>> entries = watch.pending.entrySet().iterator();
+        while(entries.hasNext()){
+            Map.Entry<String,Long> entry = entries.next();
+            String path = entry.getKey();
+            if(last != null && order.compare(path, last) <= 0){
+                // frames can only be appended
+                System.err.println("frame written out of order, init() again to include it: " + path);
+                entries.remove();
+                continue;
+            }
+            File file = new File(path);
+            long size = file.length();
+            if(!file.isFile()){
+                entries.remove();
+            }else if(size > 0 && size == entry.getValue() && now - file.lastModified() >= SETTLE_TIME && isComplete(file)){
+                ready.add(path);
+            }else{
+                entry.setValue(size);
+                if(writing == null || order.compare(path, writing) < 0) writing = path;
+            }
+        }
+        Collections.sort(ready, order);
+        int count = 0;
+        while(count < ready.size() && (writing == null || order.compare(ready.get(count), writing) < 0)){
+            watch.pending.remove(ready.get(count));
+            count++;
+        }
+        if(count == 0) return false;
+
+        watch.source.append(ready.subList(0, count).toArray(new String[count]));
+        return true;
+    }
+
+    /**
+     * check the end of a png or jpeg file is there (writers may pause longer than the settle time),
+     * other formats are assumed complete once their size settled
+     * @param file
+     * @return false if the file is truncated
+     */
+    private static boolean isComplete(File file){
+        String name = file.getName().toLowerCase();
+        byte[] end;
+        if(name.endsWith(".png")){
+            // IEND chunk: empty, with its CRC
+            end = new byte[]{0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte)0xAE, 0x42, 0x60, (byte)0x82};
+        }else if(name.endsWith(".jpg") || name.endsWith(".jpeg")){
+            // end of image marker
+            end = new byte[]{(byte)0xFF, (byte)0xD9};
+        }else{
+            return true;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long length = input.length();
+            if(length < end.length) return false;
+            byte[] tail = new byte[end.length];
+            input.seek(length - end.length);
+            input.readFully(tail);
+            return Arrays.equals(tail, end);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}